@@ -0,0 +1,65 @@
+package jenkins.plugins.hipchat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Change summary over synthetic change sets of 10 to 100k files, spread over commits of 50 files.
+ * <p>
+ * {@code ChangeLogSet.Entry} authors are Jenkins {@code User}s, which need a running Jenkins, so
+ * this drives {@link ChangeSummary#add} with the author names and paths the entries would yield.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChangeSummaryBenchmark {
+
+    private static final int FILES_PER_COMMIT = 50;
+
+    @Param({"10", "1000", "10000", "100000"})
+    public int files;
+
+    private List<String> authors;
+    private List<List<String>> commits;
+
+    @Setup
+    public void createChangeSet() {
+        authors = new ArrayList<String>();
+        commits = new ArrayList<List<String>>();
+        for (int file = 0; file < files; file += FILES_PER_COMMIT) {
+            List<String> paths = new ArrayList<String>();
+            for (int i = file; i < Math.min(files, file + FILES_PER_COMMIT); i++) {
+                // touch some files twice across commits, as merges do
+                int path = i % 7 == 0 ? i / 2 : i;
+                paths.add("services/module" + (path % 40) + "/src/main/java/com/example/Type" + path + ".java");
+            }
+            authors.add("developer" + (commits.size() % 25));
+            commits.add(paths);
+        }
+    }
+
+    @Benchmark
+    public long summarize() {
+        ChangeSummary summary = new ChangeSummary();
+        for (int i = 0; i < commits.size(); i++) {
+            summary.add(authors.get(i), commits.get(i));
+        }
+        return summary.getFileCount() + summary.getAuthors().size();
+    }
+}
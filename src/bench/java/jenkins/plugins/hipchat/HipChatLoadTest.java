@@ -0,0 +1,141 @@
+package jenkins.plugins.hipchat;
+
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import hudson.model.StreamBuildListener;
+import hudson.util.NullStream;
+import org.jvnet.hudson.test.HudsonTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives synthetic build starts and completions through {@link HipChatNotifier.HipChatJobProperty#prebuild} and
+ * {@link HipChatListener} against a {@link HipChatStubServer}, then reports throughput, how long the
+ * plugin held the (simulated) executor threads, and heap use.
+ * <p>
+ * Runs with the benchmark profile: {@code mvn -Pbenchmark test -Dtest=HipChatLoadTest}. Tune it with
+ * system properties, e.g. {@code -Dhipchat.load.builds=10000 -Dhipchat.load.latency=200}:
+ * <ul>
+ * <li>{@code hipchat.load.builds}: builds to complete (default 2000)</li>
+ * <li>{@code hipchat.load.executors}: threads completing builds concurrently (default 8)</li>
+ * <li>{@code hipchat.load.projects}: projects the builds are spread over (default 20)</li>
+ * <li>{@code hipchat.load.latency}: stub response time in ms (default 50)</li>
+ * <li>{@code hipchat.load.errorRate} and {@code hipchat.load.throttleRate}: share of posts answered with
+ * 500 and 429 (default 0)</li>
+ * <li>{@code hipchat.load.durable}: use durable delivery (default false)</li>
+ * </ul>
+ */
+public class HipChatLoadTest extends HudsonTestCase {
+
+    private static final long DRAIN_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private HipChatStubServer server;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new HipChatStubServer()
+                .setLatency(Long.getLong("hipchat.load.latency", 50))
+                .setErrorRate(Double.parseDouble(System.getProperty("hipchat.load.errorRate", "0")))
+                .setThrottleRate(Double.parseDouble(System.getProperty("hipchat.load.throttleRate", "0")), 1);
+        HipChatApi.setEndpoint("http", server.getHost());
+        HipChatRateLimiter.get().configure(Integer.MAX_VALUE, Integer.MAX_VALUE, HipChatRateLimiter.DEFAULT_MAX_RETRIES);
+        HipChatOutbox.get().configure(Boolean.getBoolean("hipchat.load.durable"), HipChatOutbox.DEFAULT_MAX_AGE_HOURS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        HipChatApi.setEndpoint(null, null);
+        server.stop();
+        super.tearDown();
+    }
+
+    public void testCompletionsUnderLoad() throws Exception {
+        int builds = Integer.getInteger("hipchat.load.builds", 2000);
+        int executors = Integer.getInteger("hipchat.load.executors", 8);
+        int projectCount = Integer.getInteger("hipchat.load.projects", 20);
+
+        final List<FreeStyleProject> projects = new ArrayList<FreeStyleProject>();
+        for (int i = 0; i < projectCount; i++) {
+            FreeStyleProject project = createFreeStyleProject("load-" + i);
+            project.getPublishersList().add(new HipChatNotifier("token", "room", "http://localhost:8080/", "Load Test"));
+            project.addProperty(new HipChatNotifier.HipChatJobProperty("room", true, true, true, true, true, true, true));
+            projects.add(project);
+        }
+
+        final HipChatListener listener = new HipChatListener();
+        final BuildListener buildListener = new StreamBuildListener(new NullStream());
+        final LatencyHistogram holdTime = new LatencyHistogram();
+        long heapBefore = usedHeap();
+
+        ExecutorService pool = Executors.newFixedThreadPool(executors);
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+        long start = System.nanoTime();
+        for (int i = 0; i < builds; i++) {
+            final int n = i;
+            results.add(pool.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    FreeStyleProject project = projects.get(n % projects.size());
+                    FreeStyleBuild build = new FreeStyleBuild(project);
+                    long began = System.nanoTime();
+                    project.getProperty(HipChatNotifier.HipChatJobProperty.class).prebuild(build, buildListener);
+                    build.setResult(n % 10 == 0 ? Result.FAILURE : Result.SUCCESS);
+                    listener.onCompleted(build, buildListener);
+                    holdTime.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - began));
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> result : results) {
+            result.get();
+        }
+        pool.shutdown();
+        long submitted = System.nanoTime();
+
+        int expected = builds * 2;
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+        int lastRequests = -1;
+        while (server.getMessageCount() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(500);
+            HipChatMetrics metrics = HipChatMetrics.get();
+            if (metrics.getQueueDepth() == 0 && server.getRequestCount() == lastRequests
+                    && metrics.getSent() + metrics.getFailed() + metrics.getDropped() >= expected) {
+                break;
+            }
+            lastRequests = server.getRequestCount();
+        }
+        long drained = System.nanoTime();
+        long heapAfter = usedHeap();
+
+        HipChatMetrics metrics = HipChatMetrics.get();
+        System.out.println("HipChat load test: " + builds + " builds on " + executors + " executors, "
+                + expected + " messages expected");
+        System.out.println(String.format("  completions/s: %.0f, messages delivered/s: %.0f",
+                builds / seconds(submitted - start), server.getMessageCount() / seconds(drained - start)));
+        System.out.println("  executor hold time ms: p50 " + holdTime.getPercentile(50) + ", p99 "
+                + holdTime.getPercentile(99) + ", max " + holdTime.getMax());
+        System.out.println("  delivered " + server.getMessageCount() + " of " + server.getRequestCount() + " posts; sent "
+                + metrics.getSent() + ", failed " + metrics.getFailed() + ", retried " + metrics.getRetried()
+                + ", dropped " + metrics.getDropped());
+        System.out.println("  delivery latency ms: p50 " + metrics.getLatencyP50Millis() + ", p99 " + metrics.getLatencyP99Millis());
+        System.out.println("  heap used: " + heapBefore / 1024 / 1024 + " MB before, " + heapAfter / 1024 / 1024 + " MB after");
+    }
+
+    private static double seconds(long nanos) {
+        return Math.max(nanos, 1) / 1e9;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,73 @@
+package jenkins.plugins.hipchat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Completion message rendering: the legacy {@link ActiveNotifier.MessageBuilder} against a compiled
+ * {@link MessageTemplate} producing the same text.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@SuppressWarnings("deprecation")
+public class MessageRenderingBenchmark {
+
+    private final MessageFields fields = new FixedMessageFields();
+    private final MessageTemplate template = MessageTemplate.compile(MessageTemplate.DEFAULT_COMPLETED);
+
+    @Benchmark
+    public String messageBuilder() {
+        return new ActiveNotifier.MessageBuilder(fields).appendStatusMessage().appendDuration().appendOpenLink().toString();
+    }
+
+    @Benchmark
+    public String compiledTemplate() {
+        return template.render(fields);
+    }
+
+    /**
+     * Includes the cache lookup done for every notification.
+     */
+    @Benchmark
+    public String cachedTemplateLookup() {
+        return MessageTemplate.compile(MessageTemplate.DEFAULT_COMPLETED).render(fields);
+    }
+
+    static final class FixedMessageFields implements MessageFields {
+        public String get(MessageTemplate.Field field) {
+            switch (field) {
+                case PROJECT:
+                    return "platform-monorepo";
+                case BUILD:
+                    return "#18342";
+                case STATUS:
+                    return "Back to normal";
+                case DURATION:
+                    return "14 min";
+                case CAUSE:
+                    return "Started by an SCM change";
+                case AUTHORS:
+                    return "alice, bob";
+                case FILES:
+                    return "12";
+                case URL:
+                    return "https://jenkins.example.com/job/platform-monorepo/18342/";
+                default:
+                    return "";
+            }
+        }
+    }
+}
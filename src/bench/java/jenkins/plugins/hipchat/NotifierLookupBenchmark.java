@@ -0,0 +1,85 @@
+package jenkins.plugins.hipchat;
+
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.tasks.BuildStepMonitor;
+import hudson.tasks.Notifier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of finding the notifier for a build event, as done by {@code HipChatListener.getNotifier}:
+ * scanning the publishers versus a {@link NotifierCache} hit, for jobs with and without a HipChat
+ * publisher among other publishers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NotifierLookupBenchmark {
+
+    private static final int JOBS = 5000;
+
+    @Param({"true", "false"})
+    public boolean hipChatJob;
+
+    private final NotifierCache cache = NotifierCache.get();
+    private final List<Object> publishers = new ArrayList<Object>();
+    private String[] jobNames;
+    private int next;
+
+    @Setup
+    public void createJobs() {
+        for (int i = 0; i < 8; i++) {
+            publishers.add(new OtherNotifier());
+        }
+        if (hipChatJob) {
+            publishers.add(new HipChatNotifier("token", "room", "http://jenkins/", "Build Server"));
+        }
+        cache.clear();
+        jobNames = new String[JOBS];
+        for (int i = 0; i < JOBS; i++) {
+            jobNames[i] = "folder/job-" + i;
+            cache.getNotifier(jobNames[i], publishers);
+        }
+    }
+
+    @Benchmark
+    public FineGrainedNotifier scanPublishers() {
+        return NotifierCache.lookup(publishers);
+    }
+
+    @Benchmark
+    public FineGrainedNotifier cachedLookup() {
+        String job = jobNames[next];
+        next = (next + 1) % JOBS;
+        return cache.getNotifier(job, publishers);
+    }
+
+    public static class OtherNotifier extends Notifier {
+        public BuildStepMonitor getRequiredMonitorService() {
+            return BuildStepMonitor.NONE;
+        }
+
+        @Override
+        public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package jenkins.plugins.hipchat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link StandardHipChatService} posting to an in-process {@link HipChatStubServer}, for one and for
+ * several rooms. Rate limiting is lifted so the numbers reflect the client alone.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PublishBenchmark {
+
+    @Param({"1", "6"})
+    public int rooms;
+
+    private HipChatStubServer server;
+    private StandardHipChatService service;
+
+    @Setup
+    public void startServer() throws Exception {
+        server = new HipChatStubServer();
+        HipChatRateLimiter.get().configure(Integer.MAX_VALUE, Integer.MAX_VALUE, 0);
+        StringBuilder roomIds = new StringBuilder("room0");
+        for (int i = 1; i < rooms; i++) {
+            roomIds.append(",room").append(i);
+        }
+        service = new StandardHipChatService("token", roomIds.toString(), "Build Server");
+        service.setProtocol("http");
+        service.setHost(server.getHost());
+    }
+
+    @TearDown
+    public void stopServer() {
+        server.stop();
+        HipChatHttpClient.close();
+    }
+
+    @Benchmark
+    public List<RoomDeliveryResult> publish() {
+        return service.deliver("platform-monorepo - #18342 Success after 14 min (<a href='https://jenkins/'>Open</a>)", "green");
+    }
+}
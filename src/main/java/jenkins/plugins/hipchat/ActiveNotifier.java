@@ -1,16 +1,12 @@
 package jenkins.plugins.hipchat;
 
 import hudson.Util;
+import hudson.matrix.MatrixBuild;
+import hudson.matrix.MatrixConfiguration;
+import hudson.matrix.MatrixRun;
 import hudson.model.*;
-import hudson.scm.ChangeLogSet;
-import hudson.scm.ChangeLogSet.AffectedFile;
-import hudson.scm.ChangeLogSet.Entry;
 import org.apache.commons.lang.StringUtils;
 
-import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Set;
 import java.util.logging.Logger;
 
 @SuppressWarnings("rawtypes")
@@ -19,88 +15,128 @@ public class ActiveNotifier implements FineGrainedNotifier {
     private static final Logger logger = Logger.getLogger(HipChatListener.class.getName());
 
     HipChatNotifier notifier;
+    private volatile Settings settings;
 
     public ActiveNotifier(HipChatNotifier notifier) {
         super();
         this.notifier = notifier;
     }
 
-    private HipChatService getHipChat(AbstractBuild r) {
+    /**
+     * Identifies a message about a build, e.g. {@code "folder/job#12:completed:1380000000000"}. The
+     * build's start time tells it apart from build #12 of a deleted job of the same name, or of the
+     * same job before its build numbers were reset.
+     */
+    static String getMessageKey(AbstractBuild r, String event) {
+        return getSequenceKey(r) + ":" + event + ":" + r.getTimeInMillis();
+    }
+
+    /**
+     * Messages about one build are delivered in order under this key.
+     */
+    static String getSequenceKey(AbstractBuild r) {
+        return r.getProject().getFullName() + "#" + r.getNumber();
+    }
+
+    /**
+     * The job's HipChat settings. Matrix configurations share those of their matrix project.
+     */
+    static HipChatNotifier.HipChatJobProperty getJobProperty(AbstractBuild r) {
         AbstractProject<?, ?> project = r.getProject();
-        String projectRoom = Util.fixEmpty(project.getProperty(HipChatNotifier.HipChatJobProperty.class).getRoom());
-        return notifier.newHipChatService(projectRoom);
+        if (project instanceof MatrixConfiguration) {
+            project = ((MatrixConfiguration) project).getParent();
+        }
+        return project.getProperty(HipChatNotifier.HipChatJobProperty.class);
+    }
+
+    /**
+     * The project's settings, resolved on the first event and again whenever the job property has
+     * been replaced since, as every configuration change that reaches the job does. The
+     * {@link NotifierCache} replaces this notifier when the publisher or the global configuration
+     * may have changed.
+     */
+    Settings getSettings(AbstractBuild r) {
+        HipChatNotifier.HipChatJobProperty jobProperty = getJobProperty(r);
+        Settings current = settings;
+        if (current == null || current.jobProperty != jobProperty) {
+            // racing events build equal copies, and either may win
+            current = new Settings(notifier, jobProperty);
+            settings = current;
+        }
+        return current;
     }
 
     public void deleted(AbstractBuild r) {
     }
 
+    /**
+     * Renders and sends the start message in the background, ahead of any later message about the build.
+     */
     public void started(AbstractBuild build) {
-        String changes = getChanges(build);
-        CauseAction cause = build.getAction(CauseAction.class);
-
-        if (changes != null) {
-            notifyStart(build, changes);
-        } else if (cause != null) {
-            MessageBuilder message = new MessageBuilder(notifier, build);
-            message.append(cause.getShortDescription());
-            notifyStart(build, message.appendOpenLink().toString());
-        } else {
-            notifyStart(build, getBuildStatusMessage(build));
-        }
+        Settings settings = getSettings(build);
+        HipChatService service = settings.target.newService(getMessageKey(build, "started"));
+        sendStarted(HipChatDispatcher.get(), getSequenceKey(build), settings.startTemplate,
+                new BuildMessageFields(notifier, build, true), service);
     }
 
-    private void notifyStart(AbstractBuild build, String message) {
-        getHipChat(build).publish(message, "green");
+    /**
+     * Hands the start message to the dispatcher, which renders and posts it on one of its threads,
+     * before any message later dispatched under the same sequence key. Field values are only looked
+     * up while rendering, so the build thread does none of the work.
+     */
+    static void sendStarted(HipChatDispatcher dispatcher, String sequenceKey, final MessageTemplate template,
+                            final MessageFields fields, final HipChatService service) {
+        if (!(service instanceof OutboxHipChatService)) {
+            // the outbox counts its own entries
+            HipChatMetrics.get().queued();
+        }
+        dispatcher.execute(sequenceKey, new Runnable() {
+            public void run() {
+                service.publish(template.render(fields), "green");
+            }
+        });
     }
 
     public void finalized(AbstractBuild r) {
     }
 
     public void completed(AbstractBuild r) {
+        Settings settings = getSettings(r);
+        HipChatNotifier.HipChatJobProperty jobProperty = settings.jobProperty;
+        if (r instanceof MatrixRun && !jobProperty.getNotifyMatrixConfigurations()) {
+            // reported with the matrix build
+            return;
+        }
         AbstractProject<?, ?> project = r.getProject();
-        HipChatNotifier.HipChatJobProperty jobProperty = project.getProperty(HipChatNotifier.HipChatJobProperty.class);
         Result result = r.getResult();
-        AbstractBuild<?, ?> previousBuild = project.getLastBuild().getPreviousBuild();
-        Result previousResult = (previousBuild != null) ? previousBuild.getResult() : Result.SUCCESS;
-        if ((result == Result.ABORTED && jobProperty.getNotifyAborted())
+        boolean notify = (result == Result.ABORTED && jobProperty.getNotifyAborted())
                 || (result == Result.FAILURE && jobProperty.getNotifyFailure())
                 || (result == Result.NOT_BUILT && jobProperty.getNotifyNotBuilt())
-                || (result == Result.SUCCESS && previousResult == Result.FAILURE && jobProperty.getNotifyBackToNormal())
+                || (jobProperty.getNotifyBackToNormal() && isBackToNormal(r))
                 || (result == Result.SUCCESS && jobProperty.getNotifySuccess())
-                || (result == Result.UNSTABLE && jobProperty.getNotifyUnstable())) {
-            getHipChat(r).publish(getBuildStatusMessage(r), getBuildColor(r));
+                || (result == Result.UNSTABLE && jobProperty.getNotifyUnstable());
+        if (jobProperty.getSuppressRepeats()) {
+            notify = JobNotificationStates.get().shouldNotify(project.getFullName(), r.getNumber(), result, notify,
+                    jobProperty.getRepeatEveryBuilds(), jobProperty.getRepeatAfterMinutes(), System.currentTimeMillis());
+        }
+        if (notify) {
+            MessageFields fields = new BuildMessageFields(notifier, r);
+            NotificationCoalescer coalescer = NotificationCoalescer.get();
+            // the label and link are only shown in digests
+            boolean digest = coalescer.isEnabled();
+            coalescer.add(settings.target, getMessageKey(r, "completed"), getSequenceKey(r),
+                    result, getBuildStatusMessage(r, fields), getBuildColor(r),
+                    digest ? r.getFullDisplayName() : null,
+                    digest ? fields.get(MessageTemplate.Field.URL) : null);
         }
+        BuildMessageFields.forget(r);
     }
 
-    String getChanges(AbstractBuild r) {
-        if (!r.hasChangeSetComputed()) {
-            logger.info("No change set computed...");
-            return null;
-        }
-        ChangeLogSet changeSet = r.getChangeSet();
-        List<Entry> entries = new LinkedList<Entry>();
-        Set<AffectedFile> files = new HashSet<AffectedFile>();
-        for (Object o : changeSet.getItems()) {
-            Entry entry = (Entry) o;
-            logger.info("Entry " + o);
-            entries.add(entry);
-            files.addAll(entry.getAffectedFiles());
-        }
-        if (entries.isEmpty()) {
-            logger.info("Empty change...");
-            return null;
-        }
-        Set<String> authors = new HashSet<String>();
-        for (Entry entry : entries) {
-            authors.add(entry.getAuthor().getDisplayName());
-        }
-        MessageBuilder message = new MessageBuilder(notifier, r);
-        message.append("Started by changes from ");
-        message.append(StringUtils.join(authors, ", "));
-        message.append(" (");
-        message.append(files.size());
-        message.append(" file(s) changed)");
-        return message.appendOpenLink().toString();
+    /**
+     * Whether {@code r} succeeded and the build completed before it failed.
+     */
+    static boolean isBackToNormal(AbstractBuild r) {
+        return r.getResult() == Result.SUCCESS && PreviousResults.get().getPreviousResult(r) == Result.FAILURE;
     }
 
     static String getBuildColor(AbstractBuild r) {
@@ -114,27 +150,80 @@ public class ActiveNotifier implements FineGrainedNotifier {
         }
     }
 
+    /**
+     * The completion message; for a matrix build followed by its configurations' results, unless the
+     * template already places them.
+     */
     String getBuildStatusMessage(AbstractBuild r) {
-        MessageBuilder message = new MessageBuilder(notifier, r);
-        message.appendStatusMessage();
-        message.appendDuration();
-        return message.appendOpenLink().toString();
+        return getBuildStatusMessage(r, new BuildMessageFields(notifier, r));
+    }
+
+    private String getBuildStatusMessage(AbstractBuild r, MessageFields fields) {
+        MessageTemplate template = getSettings(r).completedTemplate;
+        String message = template.render(fields);
+        if (r instanceof MatrixBuild && !template.uses(MessageTemplate.Field.AXES)) {
+            String axes = fields.get(MessageTemplate.Field.AXES);
+            if (axes.length() > 0) {
+                message = message + "<br/>" + axes;
+            }
+        }
+        return message;
+    }
+
+    /**
+     * The job's own template if it has one, else the global one, else the built-in default.
+     */
+    private static MessageTemplate getTemplate(HipChatNotifier notifier, HipChatNotifier.HipChatJobProperty jobProperty,
+                                               boolean started) {
+        String text = null;
+        if (jobProperty != null) {
+            text = started ? jobProperty.getStartTemplate() : jobProperty.getCompletedTemplate();
+        }
+        if (StringUtils.isBlank(text)) {
+            HipChatNotifier.DescriptorImpl descriptor = notifier.getDescriptor();
+            text = started ? descriptor.getStartTemplate() : descriptor.getCompletedTemplate();
+        }
+        return MessageTemplate.compile(text);
+    }
+
+    /**
+     * What a project's notifications need from its configuration: the job settings, where messages go
+     * and the compiled templates. Immutable.
+     */
+    static final class Settings {
+        final HipChatNotifier.HipChatJobProperty jobProperty;
+        final DeliveryTarget target;
+        final MessageTemplate startTemplate;
+        final MessageTemplate completedTemplate;
+
+        Settings(HipChatNotifier notifier, HipChatNotifier.HipChatJobProperty jobProperty) {
+            this.jobProperty = jobProperty;
+            this.target = DeliveryTarget.of(notifier, jobProperty == null ? null : Util.fixEmpty(jobProperty.getRoom()));
+            this.startTemplate = getTemplate(notifier, jobProperty, true);
+            this.completedTemplate = getTemplate(notifier, jobProperty, false);
+        }
     }
 
+    /**
+     * @deprecated messages are rendered from a {@link MessageTemplate}; kept for compatibility.
+     */
+    @Deprecated
     public static class MessageBuilder {
         private StringBuffer message;
-        private HipChatNotifier notifier;
-        private AbstractBuild build;
+        private MessageFields fields;
 
         public MessageBuilder(HipChatNotifier notifier, AbstractBuild build) {
-            this.notifier = notifier;
+            this(new BuildMessageFields(notifier, build));
+        }
+
+        MessageBuilder(MessageFields fields) {
+            this.fields = fields;
             this.message = new StringBuffer();
-            this.build = build;
             startMessage();
         }
 
         public MessageBuilder appendStatusMessage() {
-            message.append(getStatusMessage(build));
+            message.append(fields.get(MessageTemplate.Field.STATUS));
             return this;
         }
 
@@ -143,9 +232,7 @@ public class ActiveNotifier implements FineGrainedNotifier {
                 return "Starting...";
             }
             Result result = r.getResult();
-            Run previousBuild = r.getProject().getLastBuild().getPreviousBuild();
-            Result previousResult = (previousBuild != null) ? previousBuild.getResult() : Result.SUCCESS;
-            if (result == Result.SUCCESS && previousResult == Result.FAILURE) return "Back to normal";
+            if (isBackToNormal(r)) return "Back to normal";
             if (result == Result.SUCCESS) return "Success";
             if (result == Result.FAILURE) return "<b>FAILURE</b>";
             if (result == Result.ABORTED) return "ABORTED";
@@ -165,22 +252,22 @@ public class ActiveNotifier implements FineGrainedNotifier {
         }
 
         private MessageBuilder startMessage() {
-            message.append(build.getProject().getDisplayName());
+            message.append(fields.get(MessageTemplate.Field.PROJECT));
             message.append(" - ");
-            message.append(build.getDisplayName());
+            message.append(fields.get(MessageTemplate.Field.BUILD));
             message.append(" ");
             return this;
         }
 
         public MessageBuilder appendOpenLink() {
-            String url = notifier.getBuildServerUrl() + build.getUrl();
+            String url = fields.get(MessageTemplate.Field.URL);
             message.append(" (<a href='").append(url).append("'>Open</a>)");
             return this;
         }
 
         public MessageBuilder appendDuration() {
             message.append(" after ");
-            message.append(build.getDurationString());
+            message.append(fields.get(MessageTemplate.Field.DURATION));
             return this;
         }
 
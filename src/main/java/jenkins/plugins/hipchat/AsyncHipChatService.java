@@ -0,0 +1,60 @@
+package jenkins.plugins.hipchat;
+
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Hands messages to the {@link HipChatDispatcher} so the caller never waits on the HipChat API.
+ * Messages given the same sequence key are delivered in the order they were published.
+ */
+public class AsyncHipChatService implements HipChatService {
+
+    private final HipChatService delegate;
+    private final HipChatDispatcher dispatcher;
+    private final Collection<String> sequenceKeys;
+
+    public AsyncHipChatService(HipChatService delegate) {
+        this(delegate, (String) null);
+    }
+
+    /**
+     * @param sequenceKey e.g. {@code "job#12"}; null if ordering does not matter
+     */
+    public AsyncHipChatService(HipChatService delegate, String sequenceKey) {
+        this(delegate, HipChatDispatcher.get(), sequenceKey);
+    }
+
+    /**
+     * Delivers messages after those published earlier under any of the sequence keys, e.g. a digest
+     * after the start messages of the builds it covers.
+     */
+    public AsyncHipChatService(HipChatService delegate, Collection<String> sequenceKeys) {
+        this(delegate, HipChatDispatcher.get(), sequenceKeys);
+    }
+
+    AsyncHipChatService(HipChatService delegate, HipChatDispatcher dispatcher, String sequenceKey) {
+        this(delegate, dispatcher, Collections.singletonList(sequenceKey));
+    }
+
+    AsyncHipChatService(HipChatService delegate, HipChatDispatcher dispatcher, Collection<String> sequenceKeys) {
+        this.delegate = delegate;
+        this.dispatcher = dispatcher;
+        this.sequenceKeys = sequenceKeys;
+    }
+
+    public void publish(String message) {
+        publish(message, "yellow");
+    }
+
+    public void publish(final String message, final String color) {
+        if (!(delegate instanceof OutboxHipChatService)) {
+            // the outbox counts its own entries
+            HipChatMetrics.get().queued();
+        }
+        dispatcher.execute(sequenceKeys, new Runnable() {
+            public void run() {
+                delegate.publish(message, color);
+            }
+        });
+    }
+}
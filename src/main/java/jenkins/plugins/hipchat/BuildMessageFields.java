@@ -0,0 +1,176 @@
+package jenkins.plugins.hipchat;
+
+import hudson.matrix.MatrixBuild;
+import hudson.model.AbstractBuild;
+import hudson.model.CauseAction;
+import org.apache.commons.lang.StringUtils;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * {@link MessageFields} read from a build. Values are looked up when a template asks for them.
+ * <p>
+ * Values that do not change while the build runs (project name, link, cause and changes) are
+ * remembered per build, so the completion message reuses what the start message computed.
+ * {@link #forget} drops them once the build has been reported; builds that are never reported
+ * are dropped when they are garbage collected. Fields for the start message take their values
+ * when they are created, on the build thread, so rendering the message after the build has been
+ * reported does not remember the build again.
+ */
+@SuppressWarnings("rawtypes")
+class BuildMessageFields implements MessageFields {
+
+    private static final Map<AbstractBuild, Shared> shared = new WeakHashMap<AbstractBuild, Shared>();
+
+    private final HipChatNotifier notifier;
+    private final AbstractBuild build;
+    private final boolean starting;
+    private Shared values;
+
+    BuildMessageFields(HipChatNotifier notifier, AbstractBuild build) {
+        this(notifier, build, false);
+    }
+
+    /**
+     * @param starting whether the fields are for the start message, which reports the build as starting
+     *                 even if it has moved on by the time the message is rendered
+     */
+    BuildMessageFields(HipChatNotifier notifier, AbstractBuild build, boolean starting) {
+        this.notifier = notifier;
+        this.build = build;
+        this.starting = starting;
+        if (starting) {
+            values();
+        }
+    }
+
+    /**
+     * Drops the values remembered for the build.
+     */
+    static void forget(AbstractBuild build) {
+        synchronized (shared) {
+            shared.remove(build);
+        }
+    }
+
+    public String get(MessageTemplate.Field field) {
+        switch (field) {
+            case PROJECT:
+                return values().getProject(build);
+            case BUILD:
+                return build.getDisplayName();
+            case STATUS:
+                return getStatus();
+            case DURATION:
+                return build.getDurationString();
+            case CAUSE:
+                return getCause();
+            case AUTHORS:
+                return getChanges() != null ? StringUtils.join(getChanges().getAuthors(), ", ") : "";
+            case FILES:
+                return getChanges() != null ? getChanges().getFileCountText() : "0";
+            case URL:
+                return notifier.getBuildServerUrl() + values().getUrl(build);
+            case AXES:
+                return build instanceof MatrixBuild ? getMatrixSummary() : "";
+            default:
+                return "";
+        }
+    }
+
+    /**
+     * What started the build: the changes that triggered it, the cause, or failing both the status.
+     */
+    private String getCause() {
+        String cause = values().getCause(build);
+        return cause != null ? cause : getStatus();
+    }
+
+    private String getMatrixSummary() {
+        MatrixSummary summary = MatrixSummary.of((MatrixBuild) build);
+        return summary.isEmpty() ? "" : summary.toString();
+    }
+
+    private String getStatus() {
+        return starting ? "Starting..." : ActiveNotifier.MessageBuilder.getStatusMessage(build);
+    }
+
+    /**
+     * The change summary, or null if the build has no (computed) changes.
+     */
+    ChangeSummary getChanges() {
+        return values().getChanges(build);
+    }
+
+    private Shared values() {
+        if (values == null) {
+            synchronized (shared) {
+                values = shared.get(build);
+                if (values == null) {
+                    values = new Shared();
+                    shared.put(build, values);
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * The values remembered for one build. Each is computed on first use, by whichever message needs
+     * it first.
+     */
+    private static final class Shared {
+        private String project;
+        private String url;
+        private String cause;
+        private boolean causeComputed;
+        private ChangeSummary changes;
+        private boolean changesComputed;
+
+        synchronized String getProject(AbstractBuild build) {
+            if (project == null) {
+                project = build.getProject().getDisplayName();
+            }
+            return project;
+        }
+
+        synchronized String getUrl(AbstractBuild build) {
+            if (url == null) {
+                url = build.getUrl();
+            }
+            return url;
+        }
+
+        synchronized String getCause(AbstractBuild build) {
+            if (causeComputed) {
+                return cause;
+            }
+            // until the changes are known, they may yet replace the cause
+            boolean changesKnown = build.hasChangeSetComputed();
+            ChangeSummary summary = getChanges(build);
+            String computed;
+            if (summary != null) {
+                computed = "Started by changes from " + StringUtils.join(summary.getAuthors(), ", ")
+                        + " (" + summary.getFileCountText() + " file(s) changed)";
+            } else {
+                CauseAction action = build.getAction(CauseAction.class);
+                computed = action != null ? action.getShortDescription() : null;
+            }
+            if (changesKnown && computed != null) {
+                cause = computed;
+                causeComputed = true;
+            }
+            return computed;
+        }
+
+        synchronized ChangeSummary getChanges(AbstractBuild build) {
+            if (!changesComputed && build.hasChangeSetComputed()) {
+                changesComputed = true;
+                ChangeSummary summary = ChangeSummary.of(build.getChangeSet());
+                changes = summary.isEmpty() ? null : summary;
+            }
+            return changes;
+        }
+    }
+}
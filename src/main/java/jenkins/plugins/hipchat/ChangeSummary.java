@@ -0,0 +1,109 @@
+package jenkins.plugins.hipchat;
+
+import hudson.scm.ChangeLogSet;
+import hudson.scm.ChangeLogSet.Entry;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Single-pass summary of a change set: how many entries, which authors and how many distinct
+ * files.
+ * <p>
+ * Files are counted exactly up to a limit. Past that the paths seen so far are folded into a
+ * {@link HyperLogLog} sketch and the count becomes an estimate, so a merge touching tens of
+ * thousands of files costs a few kilobytes instead of a set of every path.
+ */
+public final class ChangeSummary {
+
+    private static final Logger logger = Logger.getLogger(ChangeSummary.class.getName());
+
+    public static final int DEFAULT_EXACT_FILE_LIMIT = 10000;
+
+    private static volatile int defaultExactFileLimit = DEFAULT_EXACT_FILE_LIMIT;
+
+    private final int exactFileLimit;
+    private final Set<String> authors = new LinkedHashSet<String>();
+    private Set<String> paths = new HashSet<String>();
+    private HyperLogLog sketch;
+    private int entries;
+
+    public ChangeSummary() {
+        this(defaultExactFileLimit);
+    }
+
+    public ChangeSummary(int exactFileLimit) {
+        this.exactFileLimit = Math.max(1, exactFileLimit);
+    }
+
+    public static void configure(int exactFileLimit) {
+        defaultExactFileLimit = exactFileLimit > 0 ? exactFileLimit : DEFAULT_EXACT_FILE_LIMIT;
+    }
+
+    @SuppressWarnings("rawtypes")
+    public static ChangeSummary of(ChangeLogSet changeSet) {
+        ChangeSummary summary = new ChangeSummary();
+        boolean fine = logger.isLoggable(Level.FINE);
+        for (Object o : changeSet) {
+            Entry entry = (Entry) o;
+            if (fine) {
+                logger.fine("Entry " + entry);
+            }
+            summary.add(entry.getAuthor().getDisplayName(), entry.getAffectedPaths());
+        }
+        return summary;
+    }
+
+    public void add(String author, Collection<String> affectedPaths) {
+        entries++;
+        authors.add(author);
+        if (affectedPaths == null) {
+            return;
+        }
+        for (String path : affectedPaths) {
+            if (sketch != null) {
+                sketch.add(path);
+            } else if (paths.add(path) && paths.size() > exactFileLimit) {
+                sketch = new HyperLogLog();
+                for (String seen : paths) {
+                    sketch.add(seen);
+                }
+                paths = null;
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return entries == 0;
+    }
+
+    public int getEntryCount() {
+        return entries;
+    }
+
+    public Set<String> getAuthors() {
+        return authors;
+    }
+
+    /**
+     * Whether {@link #getFileCount()} is an estimate.
+     */
+    public boolean isApproximate() {
+        return sketch != null;
+    }
+
+    public long getFileCount() {
+        return sketch != null ? Math.max(exactFileLimit + 1, sketch.estimate()) : paths.size();
+    }
+
+    /**
+     * The file count for display, e.g. {@code "12"} or {@code "48210+"} once it is an estimate.
+     */
+    public String getFileCountText() {
+        return isApproximate() ? getFileCount() + "+" : String.valueOf(getFileCount());
+    }
+}
@@ -0,0 +1,121 @@
+package jenkins.plugins.hipchat;
+
+import java.util.Date;
+
+/**
+ * Stops posting to a room that keeps failing, e.g. because it was deleted or the token was revoked.
+ * <p>
+ * After the configured number of consecutive failures the breaker opens and requests are refused
+ * without contacting HipChat. Once the open time has passed a single request is let through
+ * (half-open); its success closes the breaker, its failure opens it again. Throttling (429, or a v1
+ * rate limit error) proves the room is alive and is not counted as a failure.
+ */
+public final class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private final String token;
+    private final String room;
+    private State state = State.CLOSED;
+    private int failures;
+    private int lastResponseCode;
+    private String lastError;
+    private long retryAt;
+
+    CircuitBreaker(String token, String room) {
+        this.token = token;
+        this.room = room;
+    }
+
+    /**
+     * @param now current {@link System#currentTimeMillis()}
+     * @return whether a request may be made now; when half-open, only the first caller gets through
+     */
+    synchronized boolean allow(long now) {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (now >= retryAt) {
+                    state = State.HALF_OPEN;
+                    return true;
+                }
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Whether {@link #allow(long)} would refuse a request now; unlike it, never takes the half-open trial.
+     */
+    synchronized boolean isRefusing(long now) {
+        return state == State.HALF_OPEN || state == State.OPEN && now < retryAt;
+    }
+
+    /**
+     * Records the final outcome of a request that {@link #allow(long) was allowed}.
+     */
+    synchronized void record(RoomDeliveryResult result, long now, int failureThreshold, long openMillis) {
+        if (result.isSuccess() || result.getResponseCode() == HTTP_TOO_MANY_REQUESTS
+                || result.getFailure() == DeliveryFailure.RATE_LIMITED) {
+            state = State.CLOSED;
+            failures = 0;
+            return;
+        }
+        failures++;
+        lastResponseCode = result.getResponseCode();
+        lastError = result.getError();
+        if (state == State.HALF_OPEN || failures >= failureThreshold) {
+            state = State.OPEN;
+            retryAt = now + openMillis;
+        }
+    }
+
+    synchronized void reset() {
+        state = State.CLOSED;
+        failures = 0;
+    }
+
+    /**
+     * A failed result for a request refused while open, carrying the response code of the failure
+     * that opened the breaker.
+     */
+    synchronized RoomDeliveryResult refused() {
+        return new RoomDeliveryResult(room, false, lastResponseCode, 0, "circuit open after " + lastError);
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized int getFailures() {
+        return failures;
+    }
+
+    public synchronized String getLastError() {
+        return lastError;
+    }
+
+    /**
+     * When an open breaker lets the next request through.
+     */
+    public synchronized Date getNextAttempt() {
+        return new Date(retryAt);
+    }
+
+    public String getRoom() {
+        return room;
+    }
+
+    /**
+     * The end of the token, enough to tell tokens apart without revealing them.
+     */
+    public String getTokenSuffix() {
+        return token == null || token.length() <= 4 ? "****" : "..." + token.substring(token.length() - 4);
+    }
+}
@@ -0,0 +1,177 @@
+package jenkins.plugins.hipchat;
+
+import org.apache.commons.httpclient.params.HttpConnectionParams;
+import org.apache.commons.httpclient.protocol.ProtocolSocketFactory;
+import org.apache.commons.httpclient.protocol.SecureProtocolSocketFactory;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Opens HipChat connections with a time limit on each step: the DNS lookup, and the TCP connect
+ * (the connection timeout of the {@link HttpConnectionParams}). {@link Secure} adds one for the TLS
+ * handshake.
+ * <p>
+ * {@link InetAddress#getByName} cannot be interrupted, so lookups run on a separate thread and the
+ * caller stops waiting when the DNS timeout passes. Connections to a host share the lookup already
+ * in progress, and at most {@link #MAX_LOOKUPS} run at a time, so a DNS server that does not answer
+ * holds up one thread per host rather than one per connection attempt.
+ */
+class DeadlineSocketFactory implements ProtocolSocketFactory {
+
+    static final int MAX_LOOKUPS = 4;
+
+    private static final ThreadPoolExecutor resolver = new ThreadPoolExecutor(0, MAX_LOOKUPS, 60, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "HipChat DNS lookup");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private static final ConcurrentMap<String, FutureTask<InetAddress>> lookups = new ConcurrentHashMap<String, FutureTask<InetAddress>>();
+
+    private final int dnsTimeoutMillis;
+
+    DeadlineSocketFactory(int dnsTimeoutMillis) {
+        this.dnsTimeoutMillis = dnsTimeoutMillis;
+    }
+
+    public Socket createSocket(String host, int port) throws IOException {
+        return createSocket(host, port, null, 0, new HttpConnectionParams());
+    }
+
+    public Socket createSocket(String host, int port, InetAddress localAddress, int localPort) throws IOException {
+        return createSocket(host, port, localAddress, localPort, new HttpConnectionParams());
+    }
+
+    public Socket createSocket(String host, int port, InetAddress localAddress, int localPort,
+                               HttpConnectionParams params) throws IOException {
+        InetAddress address = resolve(host);
+        Socket socket = new Socket();
+        try {
+            if (localAddress != null) {
+                socket.bind(new InetSocketAddress(localAddress, localPort));
+            }
+            socket.connect(new InetSocketAddress(address, port), params.getConnectionTimeout());
+            return connected(socket, host, port);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Prepares a freshly connected socket for use.
+     */
+    Socket connected(Socket socket, String host, int port) throws IOException {
+        return socket;
+    }
+
+    private InetAddress resolve(String host) throws IOException {
+        FutureTask<InetAddress> lookup = lookUp(host);
+        try {
+            return lookup.get(dnsTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // left running for the other connections waiting on it, and to keep later ones from starting another
+            throw new UnknownHostException("DNS lookup of " + host + " timed out after " + dnsTimeoutMillis + "ms");
+        } catch (CancellationException e) {
+            throw new UnknownHostException("Too many DNS lookups in progress to look up " + host);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted looking up " + host);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("DNS lookup of " + host + " failed: " + e.getCause());
+        }
+    }
+
+    /**
+     * The lookup of the host in progress, or a new one. A lookup the pool has no thread for is
+     * cancelled.
+     */
+    static FutureTask<InetAddress> lookUp(final String host) {
+        FutureTask<InetAddress> lookup = lookups.get(host);
+        if (lookup != null) {
+            return lookup;
+        }
+        FutureTask<InetAddress> created = new FutureTask<InetAddress>(new Callable<InetAddress>() {
+            public InetAddress call() throws UnknownHostException {
+                return InetAddress.getByName(host);
+            }
+        }) {
+            @Override
+            protected void done() {
+                lookups.remove(host, this);
+            }
+        };
+        lookup = lookups.putIfAbsent(host, created);
+        if (lookup != null) {
+            return lookup;
+        }
+        try {
+            resolver.execute(created);
+        } catch (RejectedExecutionException e) {
+            created.cancel(false);
+        }
+        return created;
+    }
+
+    /**
+     * HTTPS connections, directly or tunnelled through a proxy.
+     */
+    static final class Secure extends DeadlineSocketFactory implements SecureProtocolSocketFactory {
+
+        private final int tlsTimeoutMillis;
+
+        Secure(int dnsTimeoutMillis, int tlsTimeoutMillis) {
+            super(dnsTimeoutMillis);
+            this.tlsTimeoutMillis = tlsTimeoutMillis;
+        }
+
+        @Override
+        Socket connected(Socket socket, String host, int port) throws IOException {
+            return handshake(socket, host, port, true);
+        }
+
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+            return handshake(socket, host, port, autoClose);
+        }
+
+        private Socket handshake(Socket socket, String host, int port, boolean autoClose) throws IOException {
+            SSLSocketFactory factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+            SSLSocket ssl = (SSLSocket) factory.createSocket(socket, host, port, autoClose);
+            ssl.setSoTimeout(tlsTimeoutMillis);
+            try {
+                ssl.startHandshake();
+            } catch (SocketTimeoutException e) {
+                ssl.close();
+                throw new SocketTimeoutException("TLS handshake with " + host + " timed out after " + tlsTimeoutMillis + "ms");
+            }
+            // the connection applies the read timeout once it has the socket
+            return ssl;
+        }
+    }
+}
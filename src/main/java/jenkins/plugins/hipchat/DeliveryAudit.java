@@ -0,0 +1,478 @@
+package jenkins.plugins.hipchat;
+
+import hudson.init.Terminator;
+import jenkins.model.Jenkins;
+import org.apache.commons.lang.StringUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records how every notification fared in every room: which build and event it was about, whether it
+ * was posted, the response code, latency and number of attempts.
+ * <p>
+ * Records are appended to small binary files in {@code JENKINS_HOME/hipchat-audit} by a background
+ * writer, through a buffer that is flushed a moment after the last record. A new file is started at
+ * every startup and whenever the current one is full; only the newest few are kept. The same records
+ * are indexed in memory by build and by room, loaded from the files once at startup, so lookups never
+ * read the files.
+ */
+public final class DeliveryAudit {
+
+    private static final Logger logger = Logger.getLogger(DeliveryAudit.class.getName());
+
+    public static final String DIRECTORY = "hipchat-audit";
+    static final long MAX_FILE_BYTES = 1024 * 1024;
+    static final int MAX_FILES = 5;
+    static final int MAX_BUILDS = 10000;
+    static final int MAX_RECORDS_PER_ROOM = 200;
+    static final long FLUSH_DELAY_MILLIS = 1000;
+    static final String KEY_SEPARATOR = ";";
+
+    private static final int MAGIC = 0x48434441;
+    private static final int VERSION = 1;
+    private static final String PREFIX = "audit-";
+    private static final String SUFFIX = ".bin";
+
+    private static DeliveryAudit instance;
+
+    private final File dir;
+    private final long maxFileBytes;
+    private final int maxFiles;
+    private final ScheduledExecutorService writer;
+
+    private final Map<String, List<Record>> byBuild = new LinkedHashMap<String, List<Record>>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, List<Record>> eldest) {
+            return size() > MAX_BUILDS;
+        }
+    };
+    private final Map<String, Deque<Record>> byRoom = new HashMap<String, Deque<Record>>();
+
+    // only used on the writer thread
+    private int fileNumber;
+    private DataOutputStream out;
+    private boolean flushScheduled;
+
+    DeliveryAudit(File dir, long maxFileBytes, int maxFiles) {
+        this.dir = dir;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = maxFiles;
+        this.writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "HipChat audit writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (dir != null) {
+            load();
+        }
+    }
+
+    public static synchronized DeliveryAudit get() {
+        if (instance == null) {
+            Jenkins jenkins = Jenkins.getInstance();
+            instance = new DeliveryAudit(jenkins != null ? new File(jenkins.getRootDir(), DIRECTORY) : null,
+                    MAX_FILE_BYTES, MAX_FILES);
+        }
+        return instance;
+    }
+
+    /**
+     * Joins the keys of the messages a digest stands for into the digest's key, under which each of
+     * them gets its own record. Job names cannot contain the separator.
+     */
+    static String joinKeys(List<String> messageKeys) {
+        return StringUtils.join(messageKeys, KEY_SEPARATOR);
+    }
+
+    /**
+     * Records the outcome of posting a message to a room, once for every message a digest stands for.
+     *
+     * @param messageKey e.g. {@code "folder/job#12:completed:1380000000000"}, or several joined by
+     *                   {@link #joinKeys}
+     */
+    public void record(String messageKey, RoomDeliveryResult result) {
+        long now = System.currentTimeMillis();
+        final List<Record> records = new ArrayList<Record>();
+        for (String key : messageKey.split(KEY_SEPARATOR)) {
+            Record record = Record.of(key, result, now);
+            index(record);
+            records.add(record);
+        }
+        if (dir == null) {
+            return;
+        }
+        writer.execute(new Runnable() {
+            public void run() {
+                try {
+                    for (Record record : records) {
+                        write(record);
+                    }
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Could not write HipChat audit record to " + dir, e);
+                    closeFile();
+                }
+            }
+        });
+    }
+
+    /**
+     * Every recorded delivery of a build's notifications, oldest first.
+     *
+     * @param build e.g. {@code "folder/job#12"}
+     */
+    public synchronized List<Record> getBuildRecords(String build) {
+        List<Record> records = byBuild.get(build);
+        return records == null ? Collections.<Record>emptyList() : new ArrayList<Record>(records);
+    }
+
+    /**
+     * The most recent deliveries to a room, newest first.
+     */
+    public synchronized List<Record> getRoomRecords(String room, int limit) {
+        Deque<Record> records = byRoom.get(room);
+        if (records == null) {
+            return Collections.emptyList();
+        }
+        List<Record> result = new ArrayList<Record>(Math.min(limit, records.size()));
+        for (Iterator<Record> it = records.descendingIterator(); it.hasNext() && result.size() < limit; ) {
+            result.add(it.next());
+        }
+        return result;
+    }
+
+    private synchronized void index(Record record) {
+        List<Record> build = byBuild.get(record.build);
+        if (build == null) {
+            build = new ArrayList<Record>(2);
+            byBuild.put(record.build, build);
+        }
+        build.add(record);
+        Deque<Record> room = byRoom.get(record.room);
+        if (room == null) {
+            room = new ArrayDeque<Record>();
+            byRoom.put(record.room, room);
+        }
+        room.addLast(record);
+        if (room.size() > MAX_RECORDS_PER_ROOM) {
+            room.removeFirst();
+        }
+    }
+
+    private void write(Record record) throws IOException {
+        if (out == null) {
+            openFile();
+        }
+        record.writeTo(out);
+        if (out.size() >= maxFileBytes) {
+            closeFile();
+            return;
+        }
+        if (!flushScheduled) {
+            flushScheduled = true;
+            writer.schedule(new Runnable() {
+                public void run() {
+                    flushFile();
+                }
+            }, FLUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void openFile() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        fileNumber++;
+        File file = new File(dir, fileName(fileNumber));
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        deleteOldFiles();
+    }
+
+    private void flushFile() {
+        flushScheduled = false;
+        if (out != null) {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not write HipChat audit records to " + dir, e);
+                closeFile();
+            }
+        }
+    }
+
+    private void closeFile() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not close HipChat audit file", e);
+        }
+        out = null;
+    }
+
+    private void deleteOldFiles() {
+        String[] names = listFiles();
+        for (int i = 0; i < names.length - maxFiles; i++) {
+            File old = new File(dir, names[i]);
+            if (!old.delete()) {
+                logger.warning("Could not delete old HipChat audit file " + old);
+            }
+        }
+    }
+
+    /**
+     * Writes buffered records to disk, waiting for the writer to catch up.
+     */
+    void flush() throws InterruptedException {
+        try {
+            writer.submit(new Runnable() {
+                public void run() {
+                    flushFile();
+                }
+            }).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Writes buffered records and closes the current file; the next record starts a new one.
+     */
+    void close() throws InterruptedException {
+        try {
+            writer.submit(new Runnable() {
+                public void run() {
+                    closeFile();
+                }
+            }).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Indexes the records in the existing files, oldest file first. A file cut short, e.g. by a crash,
+     * is read up to its last complete record.
+     */
+    private void load() {
+        String[] names = listFiles();
+        for (String name : names) {
+            File file = new File(dir, name);
+            try {
+                load(file);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Ignoring unreadable HipChat audit file " + file, e);
+            }
+        }
+        if (names.length > 0) {
+            fileNumber = parseFileNumber(names[names.length - 1]);
+        }
+    }
+
+    private void load(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a HipChat audit file");
+            }
+            while (true) {
+                index(Record.readFrom(in));
+            }
+        } catch (EOFException e) {
+            // end of the file, or of its last complete record
+        } finally {
+            in.close();
+        }
+    }
+
+    private String[] listFiles() {
+        String[] names = dir.list(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(PREFIX) && name.endsWith(SUFFIX) && parseFileNumber(name) > 0;
+            }
+        });
+        if (names == null) {
+            return new String[0];
+        }
+        // zero-padded, so names sort by number
+        Arrays.sort(names);
+        return names;
+    }
+
+    private static String fileName(int number) {
+        return String.format("%s%08d%s", PREFIX, number, SUFFIX);
+    }
+
+    private static int parseFileNumber(String name) {
+        try {
+            return Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    @Terminator
+    public static void closeOnShutdown() throws InterruptedException {
+        DeliveryAudit audit;
+        synchronized (DeliveryAudit.class) {
+            audit = instance;
+        }
+        if (audit != null && audit.dir != null) {
+            audit.close();
+        }
+    }
+
+    /**
+     * One message delivered, or not, to one room.
+     */
+    public static final class Record {
+
+        private final long time;
+        private final String build;
+        private final String event;
+        private final String room;
+        private final boolean success;
+        private final int responseCode;
+        private final long latencyMillis;
+        private final int attempts;
+        private final String error;
+
+        Record(long time, String build, String event, String room, boolean success, int responseCode,
+               long latencyMillis, int attempts, String error) {
+            this.time = time;
+            this.build = build;
+            this.event = event;
+            this.room = room;
+            this.success = success;
+            this.responseCode = responseCode;
+            this.latencyMillis = latencyMillis;
+            this.attempts = attempts;
+            this.error = error;
+        }
+
+        /**
+         * @param messageKey {@code build:event:startTime}, as built by {@link ActiveNotifier#getMessageKey};
+         *                   job names cannot contain colons
+         */
+        static Record of(String messageKey, RoomDeliveryResult result, long time) {
+            String[] parts = messageKey.split(":", 3);
+            String build = parts[0];
+            String event = parts.length > 1 ? parts[1] : "";
+            return new Record(time, build, event, result.getRoom(), result.isSuccess(), result.getResponseCode(),
+                    result.getLatencyMillis(), result.getAttempts(), result.getError());
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeLong(time);
+            out.writeUTF(build);
+            out.writeUTF(event);
+            out.writeUTF(room);
+            out.writeBoolean(success);
+            out.writeShort(responseCode);
+            out.writeInt((int) Math.min(latencyMillis, Integer.MAX_VALUE));
+            out.writeByte(Math.min(attempts, Byte.MAX_VALUE));
+            out.writeUTF(error == null ? "" : truncate(error));
+        }
+
+        static Record readFrom(DataInputStream in) throws IOException {
+            long time = in.readLong();
+            String build = in.readUTF();
+            String event = in.readUTF();
+            String room = in.readUTF();
+            boolean success = in.readBoolean();
+            int responseCode = in.readShort();
+            long latency = in.readInt();
+            int attempts = in.readByte();
+            String error = in.readUTF();
+            return new Record(time, build, event, room, success, responseCode, latency, attempts,
+                    error.length() == 0 ? null : error);
+        }
+
+        private static String truncate(String error) {
+            // writeUTF takes at most 64k bytes; errors are one-line exception messages
+            return error.length() > 1000 ? error.substring(0, 1000) : error;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * The job's full name and build number, e.g. {@code "folder/job#12"}.
+         */
+        public String getBuild() {
+            return build;
+        }
+
+        /**
+         * {@code "started"} or {@code "completed"}.
+         */
+        public String getEvent() {
+            return event;
+        }
+
+        public String getRoom() {
+            return room;
+        }
+
+        public boolean isSuccess() {
+            return success;
+        }
+
+        public int getResponseCode() {
+            return responseCode;
+        }
+
+        public long getLatencyMillis() {
+            return latencyMillis;
+        }
+
+        /**
+         * Requests sent; 0 if the message was refused without trying, e.g. while the room was paused.
+         */
+        public int getAttempts() {
+            return attempts;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            return build + ":" + event + " to " + room + ": " + (success ? "sent" : "failed (" + error + ")")
+                    + " after " + attempts + " attempt(s) in " + latencyMillis + "ms";
+        }
+    }
+}
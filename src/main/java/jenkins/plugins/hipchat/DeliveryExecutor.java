@@ -0,0 +1,220 @@
+package jenkins.plugins.hipchat;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the per-room requests of a multi-room notification concurrently.
+ * <p>
+ * By default the pool is shared by the whole plugin and its size is the fan-out parallelism limit,
+ * so a notification to many rooms takes roughly as long as its slowest room. In virtual thread
+ * mode, on Java 21 and later, every room request gets a virtual thread of its own instead, so a
+ * burst to hundreds of rooms needs no large pool; on older JVMs the pool is used. Either way at most
+ * {@link #getMaxInFlight()} room requests run at once across the plugin, each taking a slot with
+ * {@link #acquireInFlight} once it is within its rate limits. A request the rate limits hold back is
+ * {@link #schedule scheduled} to run in the pool when its quota comes due rather than waiting for it.
+ * <p>
+ * commons-httpclient waits for a pooled connection in {@code synchronized}/{@code wait()}, which
+ * pins a virtual thread to its carrier, so the in-flight limit should not exceed the connections
+ * per host: the default is the same.
+ */
+public final class DeliveryExecutor {
+
+    private static final Logger logger = Logger.getLogger(DeliveryExecutor.class.getName());
+
+    public static final int DEFAULT_PARALLELISM = 4;
+    public static final int DEFAULT_MAX_IN_FLIGHT = HipChatHttpClient.DEFAULT_MAX_CONNECTIONS_PER_HOST;
+
+    private static final DeliveryExecutor INSTANCE = new DeliveryExecutor();
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "HipChat deferred delivery");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private volatile ExecutorService executor;
+    private volatile Semaphore inFlight;
+    private int parallelism;
+    private boolean virtualThreads;
+    private int maxInFlight;
+
+    private DeliveryExecutor() {
+        configure(DEFAULT_PARALLELISM);
+    }
+
+    public static DeliveryExecutor get() {
+        return INSTANCE;
+    }
+
+    public void configure(int parallelism) {
+        configure(parallelism, false, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * @param parallelism    size of the pool when virtual threads are off or not available
+     * @param virtualThreads whether to run room requests on virtual threads where the JVM has them
+     * @param maxInFlight    room requests that may run at once across the plugin
+     */
+    public synchronized void configure(int parallelism, boolean virtualThreads, int maxInFlight) {
+        parallelism = parallelism > 0 ? parallelism : DEFAULT_PARALLELISM;
+        maxInFlight = maxInFlight > 0 ? maxInFlight : DEFAULT_MAX_IN_FLIGHT;
+        if (maxInFlight != this.maxInFlight) {
+            // requests holding a permit of the old semaphore return it there
+            this.maxInFlight = maxInFlight;
+            inFlight = new Semaphore(maxInFlight);
+        }
+        if (executor != null && parallelism == this.parallelism && virtualThreads == this.virtualThreads) {
+            return;
+        }
+        ExecutorService previous = executor;
+        this.parallelism = parallelism;
+        this.virtualThreads = virtualThreads;
+        ExecutorService created = virtualThreads ? newVirtualThreadPerTaskExecutor() : null;
+        if (created == null) {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(parallelism, parallelism, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new FanOutThreadFactory());
+            pool.allowCoreThreadTimeOut(true);
+            created = pool;
+        }
+        executor = created;
+        if (previous != null) {
+            previous.shutdown();
+        }
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Whether room requests run on virtual threads, i.e. they were asked for and the JVM has them.
+     */
+    public boolean isUsingVirtualThreads() {
+        return !(executor instanceof ThreadPoolExecutor);
+    }
+
+    /**
+     * {@code Executors.newVirtualThreadPerTaskExecutor()}, looked up at run time as the plugin is built
+     * for older JVMs; null where it does not exist.
+     */
+    static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (NoSuchMethodException e) {
+            logger.info("Virtual threads need Java 21 or later, HipChat room requests use a thread pool");
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Could not create virtual threads, HipChat room requests use a thread pool", e);
+        }
+        return null;
+    }
+
+    /**
+     * Takes one of the {@link #getMaxInFlight()} slots for a room request, waiting at most the given time.
+     *
+     * @return the semaphore to give the slot back to, or null if none came free in time
+     */
+    Semaphore acquireInFlight(long maxWaitMillis) throws InterruptedException {
+        Semaphore permits = inFlight;
+        return permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS) ? permits : null;
+    }
+
+    /**
+     * Runs all tasks and waits for them. A single task runs on the calling thread, so a single-room
+     * notification never touches the pool; several all run in the pool, so that its size caps the
+     * fan-out. A task the pool refuses, because the pool was replaced meanwhile, is handed to the new
+     * pool or, failing that, run on the calling thread: no room is ever skipped.
+     */
+    public <T> List<T> invokeAll(List<Callable<T>> tasks) throws InterruptedException {
+        if (tasks.size() == 1) {
+            return Collections.singletonList(call(tasks.get(0)));
+        }
+        List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+        for (Callable<T> task : tasks) {
+            futures.add(submit(task));
+        }
+        List<T> results = new ArrayList<T>(tasks.size());
+        for (Future<T> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Room delivery failed unexpectedly", e.getCause());
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Runs the task in the pool once the delay has passed. The timer only hands it over, so a task
+     * that blocks does not hold back the others that are due.
+     */
+    void schedule(final Runnable task, long delayMillis) {
+        timer.schedule(new Runnable() {
+            public void run() {
+                submit(Executors.callable(task));
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private <T> Future<T> submit(Callable<T> task) {
+        while (true) {
+            ExecutorService current = executor;
+            try {
+                return current.submit(task);
+            } catch (RejectedExecutionException e) {
+                if (current == executor) {
+                    // not replaced, so shutting down: deliver anyway
+                    FutureTask<T> inline = new FutureTask<T>(task);
+                    inline.run();
+                    return inline;
+                }
+            }
+        }
+    }
+
+    private static <T> T call(Callable<T> task) throws InterruptedException {
+        try {
+            return task.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("Room delivery failed unexpectedly", e);
+        }
+    }
+
+    private static class FanOutThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "HipChat room delivery #" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
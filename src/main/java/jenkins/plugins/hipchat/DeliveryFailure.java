@@ -0,0 +1,49 @@
+package jenkins.plugins.hipchat;
+
+/**
+ * Why HipChat did not accept a message, as told by the response, and whether trying again may help.
+ */
+public enum DeliveryFailure {
+
+    /**
+     * The token is unknown, revoked or lacks the scope to post to the room.
+     */
+    BAD_TOKEN("bad token", false),
+
+    /**
+     * No room has the configured name or id.
+     */
+    ROOM_NOT_FOUND("room not found", false),
+
+    /**
+     * Over the API quota for the token or room; worth retrying once the quota refills.
+     */
+    RATE_LIMITED("rate limited", true),
+
+    /**
+     * HipChat or a proxy in front of it is temporarily unable to serve requests.
+     */
+    UNAVAILABLE("unavailable", true),
+
+    /**
+     * Any other response that does not confirm the message was posted.
+     */
+    REJECTED("unexpected response", false);
+
+    private final String description;
+    private final boolean retryable;
+
+    DeliveryFailure(String description, boolean retryable) {
+        this.description = description;
+        this.retryable = retryable;
+    }
+
+    public boolean isRetryable() {
+        return retryable;
+    }
+
+    @Override
+    public String toString() {
+        return description;
+    }
+}
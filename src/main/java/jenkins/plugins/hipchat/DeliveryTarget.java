@@ -0,0 +1,57 @@
+package jenkins.plugins.hipchat;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Where and as whom a project's notifications are posted: the token, the rooms and the sender,
+ * resolved from the notifier and job settings.
+ * <p>
+ * Immutable. {@link ActiveNotifier} builds one the first time a project reports after its
+ * configuration, or the global one, was saved, and every later event reuses it, including the
+ * service that posts the messages.
+ */
+final class DeliveryTarget {
+
+    static final String DEFAULT_FROM = "Build Server";
+
+    private final String token;
+    private final String[] roomIds;
+    private final String from;
+    private final String deliveryKey;
+    private final StandardHipChatService service;
+
+    DeliveryTarget(String token, String rooms, String from) {
+        this.token = token;
+        this.roomIds = rooms.split(",");
+        this.from = from;
+        this.deliveryKey = token + "|" + rooms + "|" + from;
+        this.service = HipChatApi.get().newService(token, rooms, from);
+    }
+
+    /**
+     * @param room the job's rooms, or null for the notifier's
+     */
+    static DeliveryTarget of(HipChatNotifier notifier, String room) {
+        String from = StringUtils.isBlank(notifier.getSendAs()) ? DEFAULT_FROM : notifier.getSendAs();
+        return new DeliveryTarget(notifier.getAuthToken(), room == null ? notifier.getRoom() : room, from);
+    }
+
+    /**
+     * A service that posts on the calling thread, or writes to the outbox when durable delivery is on.
+     *
+     * @param messageKey identifies the message in the outbox and the {@link DeliveryAudit}; may be null
+     */
+    HipChatService newService(String messageKey) {
+        if (HipChatOutbox.get().isEnabled()) {
+            return new OutboxHipChatService(token, roomIds, from, messageKey);
+        }
+        return service.forMessage(messageKey);
+    }
+
+    /**
+     * Identifies the rooms and sender, so that notifications bound for the same rooms can be grouped.
+     */
+    String getDeliveryKey() {
+        return deliveryKey;
+    }
+}
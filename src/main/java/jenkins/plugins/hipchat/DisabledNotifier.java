@@ -4,6 +4,12 @@ import hudson.model.AbstractBuild;
 
 @SuppressWarnings("rawtypes")
 public class DisabledNotifier implements FineGrainedNotifier {
+
+    /**
+     * Shared instance for every project without a HipChat publisher; the notifier has no state.
+     */
+    public static final DisabledNotifier INSTANCE = new DisabledNotifier();
+
     public void started(AbstractBuild r) {
     }
 
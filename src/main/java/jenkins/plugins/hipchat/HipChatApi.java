@@ -0,0 +1,61 @@
+package jenkins.plugins.hipchat;
+
+/**
+ * The HipChat REST API version notifications are posted through, chosen in the global settings.
+ */
+public enum HipChatApi {
+    V1 {
+        StandardHipChatService create(String token, String roomId, String from) {
+            return new StandardHipChatService(token, roomId, from);
+        }
+    },
+    V2 {
+        StandardHipChatService create(String token, String roomId, String from) {
+            return new V2HipChatService(token, roomId, from);
+        }
+    };
+
+    private static volatile HipChatApi current = V1;
+    private static volatile String endpointProtocol;
+    private static volatile String endpointHost;
+
+    abstract StandardHipChatService create(String token, String roomId, String from);
+
+    StandardHipChatService newService(String token, String roomId, String from) {
+        StandardHipChatService service = create(token, roomId, from);
+        if (endpointHost != null) {
+            service.setProtocol(endpointProtocol);
+            service.setHost(endpointHost);
+        }
+        return service;
+    }
+
+    /**
+     * Sends everything to another server, e.g. a {@code HipChatStubServer} in tests; a null host restores the default.
+     */
+    static void setEndpoint(String protocol, String host) {
+        endpointProtocol = protocol;
+        endpointHost = host;
+        // drop services built for the previous endpoint
+        NotifierCache.get().clear();
+    }
+
+    public static HipChatApi get() {
+        return current;
+    }
+
+    public static void configure(HipChatApi api) {
+        current = api;
+    }
+
+    public static HipChatApi parse(String value) {
+        if (value != null) {
+            for (HipChatApi api : values()) {
+                if (api.name().equalsIgnoreCase(value.trim())) {
+                    return api;
+                }
+            }
+        }
+        return V1;
+    }
+}
@@ -0,0 +1,71 @@
+package jenkins.plugins.hipchat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link CircuitBreaker} of every room and token messages were posted to.
+ */
+public final class HipChatCircuitBreakers {
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final int DEFAULT_OPEN_SECONDS = 60;
+
+    private static final HipChatCircuitBreakers INSTANCE = new HipChatCircuitBreakers();
+
+    private final ConcurrentMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<String, CircuitBreaker>();
+
+    private volatile int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private volatile long openMillis = TimeUnit.SECONDS.toMillis(DEFAULT_OPEN_SECONDS);
+
+    public static HipChatCircuitBreakers get() {
+        return INSTANCE;
+    }
+
+    public void configure(int failureThreshold, int openSeconds) {
+        this.failureThreshold = failureThreshold > 0 ? failureThreshold : DEFAULT_FAILURE_THRESHOLD;
+        this.openMillis = TimeUnit.SECONDS.toMillis(openSeconds > 0 ? openSeconds : DEFAULT_OPEN_SECONDS);
+    }
+
+    CircuitBreaker getBreaker(String token, String room) {
+        String key = token + "|" + room;
+        CircuitBreaker breaker = breakers.get(key);
+        if (breaker == null) {
+            CircuitBreaker created = new CircuitBreaker(token, room);
+            breaker = breakers.putIfAbsent(key, created);
+            if (breaker == null) {
+                breaker = created;
+            }
+        }
+        return breaker;
+    }
+
+    void record(CircuitBreaker breaker, RoomDeliveryResult result) {
+        breaker.record(result, System.currentTimeMillis(), failureThreshold, openMillis);
+    }
+
+    /**
+     * Breakers that are not closed, for display.
+     */
+    public List<CircuitBreaker> getTripped() {
+        List<CircuitBreaker> tripped = new ArrayList<CircuitBreaker>();
+        for (CircuitBreaker breaker : breakers.values()) {
+            if (breaker.getState() != CircuitBreaker.State.CLOSED) {
+                tripped.add(breaker);
+            }
+        }
+        return tripped;
+    }
+
+    /**
+     * Closes every breaker, e.g. after a room or token was fixed.
+     */
+    public void resetAll() {
+        for (CircuitBreaker breaker : breakers.values()) {
+            breaker.reset();
+        }
+    }
+}
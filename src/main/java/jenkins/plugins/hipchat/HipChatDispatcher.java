@@ -0,0 +1,306 @@
+package jenkins.plugins.hipchat;
+
+import hudson.init.Terminator;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Plugin-wide pool that delivers HipChat notifications off the build threads.
+ * <p>
+ * Work is held in a bounded queue; what happens once that queue is full is decided by the
+ * configured {@link OverflowPolicy}. Work submitted under a key runs one task at a time in
+ * submission order, e.g. to keep the messages about one build in sequence.
+ */
+public class HipChatDispatcher {
+
+    private static final Logger logger = Logger.getLogger(HipChatDispatcher.class.getName());
+
+    public static final int DEFAULT_THREADS = 2;
+    public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+    public static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+    public enum OverflowPolicy {
+        /** Drop the oldest queued notification to make room for the new one. */
+        DISCARD_OLDEST,
+        /** Drop the notification that could not be queued. */
+        DISCARD_NEWEST,
+        /** Deliver the notification on the calling (build) thread. */
+        CALLER_RUNS;
+
+        public static OverflowPolicy parse(String value) {
+            if (value != null) {
+                for (OverflowPolicy policy : values()) {
+                    if (policy.name().equalsIgnoreCase(value.trim())) {
+                        return policy;
+                    }
+                }
+            }
+            return DISCARD_OLDEST;
+        }
+    }
+
+    private static final HipChatDispatcher INSTANCE = new HipChatDispatcher();
+
+    private volatile ThreadPoolExecutor executor;
+    private int threads;
+    private int queueCapacity;
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DISCARD_OLDEST;
+    private final ConcurrentMap<String, SerialExecution> serialExecutions = new ConcurrentHashMap<String, SerialExecution>();
+
+    HipChatDispatcher() {
+        configure(DEFAULT_THREADS, DEFAULT_QUEUE_CAPACITY, OverflowPolicy.DISCARD_OLDEST);
+    }
+
+    public static HipChatDispatcher get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Applies new pool settings. A changed pool size or capacity replaces the executor; the previous
+     * one is shut down and keeps delivering whatever it had already accepted.
+     */
+    public synchronized void configure(int threads, int queueCapacity, OverflowPolicy overflowPolicy) {
+        threads = threads > 0 ? threads : DEFAULT_THREADS;
+        queueCapacity = queueCapacity > 0 ? queueCapacity : DEFAULT_QUEUE_CAPACITY;
+        this.overflowPolicy = overflowPolicy != null ? overflowPolicy : OverflowPolicy.DISCARD_OLDEST;
+        if (executor != null && !executor.isShutdown() && threads == this.threads && queueCapacity == this.queueCapacity) {
+            return;
+        }
+        ThreadPoolExecutor previous = executor;
+        this.threads = threads;
+        this.queueCapacity = queueCapacity;
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity), new DaemonThreadFactory(), new OverflowHandler());
+        executor.allowCoreThreadTimeOut(true);
+        if (previous != null) {
+            previous.shutdown();
+        }
+    }
+
+    public void execute(Runnable task) {
+        ThreadPoolExecutor current = executor;
+        if (current.isShutdown()) {
+            // Jenkins is going down; still try to deliver rather than silently losing the message
+            task.run();
+            return;
+        }
+        current.execute(task);
+    }
+
+    /**
+     * Runs the task after every task previously submitted under the same key has finished.
+     */
+    public void execute(String key, Runnable task) {
+        if (key == null) {
+            execute(task);
+            return;
+        }
+        while (true) {
+            SerialExecution execution = serialExecutions.get(key);
+            if (execution == null) {
+                SerialExecution created = new SerialExecution(key);
+                execution = serialExecutions.putIfAbsent(key, created);
+                if (execution == null) {
+                    execution = created;
+                }
+            }
+            if (execution.offer(task)) {
+                return;
+            }
+            // it finished in the meantime; start a new one
+            serialExecutions.remove(key, execution);
+        }
+    }
+
+    /**
+     * Runs the task after every task previously submitted under any of the keys has finished, e.g. a
+     * digest after the earlier messages of every build it covers.
+     */
+    public void execute(Collection<String> keys, final Runnable task) {
+        Set<String> distinct = new LinkedHashSet<String>(keys);
+        distinct.remove(null);
+        if (distinct.size() <= 1) {
+            execute(distinct.isEmpty() ? null : distinct.iterator().next(), task);
+            return;
+        }
+        // a turn in each key's sequence; the last one to come up runs the task
+        final AtomicInteger waiting = new AtomicInteger(distinct.size());
+        for (String key : distinct) {
+            execute(key, new Runnable() {
+                public void run() {
+                    if (waiting.decrementAndGet() == 0) {
+                        task.run();
+                    }
+                }
+            });
+        }
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Stops accepting new work and waits up to the given timeout for queued notifications to go out.
+     */
+    public synchronized void shutdown(long timeout, TimeUnit unit) {
+        ThreadPoolExecutor current = executor;
+        current.shutdown();
+        try {
+            if (!current.awaitTermination(timeout, unit)) {
+                List<Runnable> abandoned = current.shutdownNow();
+                HipChatMetrics.get().dropped(abandoned.size());
+                logger.warning("Gave up waiting for HipChat notifications, " + abandoned.size() + " not delivered");
+            }
+        } catch (InterruptedException e) {
+            current.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Terminator
+    public static void drainOnShutdown() {
+        logger.info("Draining HipChat notification queue...");
+        NotificationCoalescer.get().flushAll();
+        get().shutdown(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        HipChatOutbox.get().shutdown();
+        HipChatHttpClient.close();
+    }
+
+    private class OverflowHandler implements RejectedExecutionHandler {
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor pool) {
+            if (pool.isShutdown()) {
+                task.run();
+                return;
+            }
+            switch (overflowPolicy) {
+                case CALLER_RUNS:
+                    logger.fine("HipChat queue full, delivering on caller thread");
+                    task.run();
+                    break;
+                case DISCARD_NEWEST:
+                    logger.warning("HipChat queue full, dropping notification");
+                    dropped(task);
+                    break;
+                default:
+                    BlockingQueue<Runnable> queue = pool.getQueue();
+                    Runnable oldest = queue.poll();
+                    if (oldest != null) {
+                        logger.warning("HipChat queue full, dropped oldest notification");
+                        dropped(oldest);
+                    }
+                    if (!queue.offer(task)) {
+                        logger.log(Level.WARNING, "HipChat queue full, dropping notification");
+                        dropped(task);
+                    }
+                    break;
+            }
+        }
+
+        private void dropped(Runnable task) {
+            if (task instanceof SerialExecution) {
+                HipChatMetrics.get().dropped(((SerialExecution) task).abandon());
+            } else {
+                HipChatMetrics.get().dropped();
+            }
+        }
+    }
+
+    /**
+     * The tasks submitted under one key. Occupies at most one pool slot, and is discarded once it
+     * has run out of tasks.
+     */
+    private final class SerialExecution implements Runnable {
+        private final String key;
+        private final Queue<Runnable> tasks = new ArrayDeque<Runnable>();
+        private boolean scheduled;
+        private boolean finished;
+
+        SerialExecution(String key) {
+            this.key = key;
+        }
+
+        /**
+         * @return false if this execution has finished and no longer takes tasks
+         */
+        boolean offer(Runnable task) {
+            synchronized (this) {
+                if (finished) {
+                    return false;
+                }
+                tasks.add(task);
+                if (scheduled) {
+                    return true;
+                }
+                scheduled = true;
+            }
+            execute(this);
+            return true;
+        }
+
+        public void run() {
+            while (true) {
+                Runnable task;
+                synchronized (this) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        finish();
+                        return;
+                    }
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "HipChat notification for " + key + " failed", e);
+                }
+            }
+        }
+
+        /**
+         * Gives up on the queued tasks after the pool dropped this execution.
+         *
+         * @return the number of tasks given up
+         */
+        synchronized int abandon() {
+            int abandoned = tasks.size();
+            tasks.clear();
+            finish();
+            return abandoned;
+        }
+
+        private void finish() {
+            finished = true;
+            serialExecutions.remove(key, this);
+        }
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "HipChat notifier #" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package jenkins.plugins.hipchat;
+
+import hudson.ProxyConfiguration;
+import jenkins.model.Jenkins;
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.protocol.Protocol;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Holds the single {@link HttpClient} shared by every HipChat delivery.
+ * <p>
+ * The client is backed by a {@link MultiThreadedHttpConnectionManager}, so connections to the
+ * HipChat API are kept alive and reused across messages and rooms. It is rebuilt whenever the
+ * connection settings or the Jenkins proxy configuration change.
+ * <p>
+ * DNS lookup, connect, TLS handshake and each read have their own timeout, and
+ * {@link #abortAfter(HttpMethod, long)} puts a deadline on a request as a whole.
+ */
+public final class HipChatHttpClient {
+
+    private static final Logger logger = Logger.getLogger(HipChatHttpClient.class.getName());
+
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 10;
+    public static final int DEFAULT_MAX_TOTAL_CONNECTIONS = 20;
+    public static final int DEFAULT_IDLE_TIMEOUT_SECONDS = 60;
+    public static final int DEFAULT_DNS_TIMEOUT_MILLIS = 5000;
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+    public static final int DEFAULT_TLS_TIMEOUT_MILLIS = 10000;
+    public static final int DEFAULT_READ_TIMEOUT_MILLIS = 30000;
+    public static final int DEFAULT_REQUEST_DEADLINE_MILLIS = 60000;
+
+    private static final long RETIRE_POLL_MILLIS = 1000;
+
+    private static int maxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+    private static int maxTotalConnections = DEFAULT_MAX_TOTAL_CONNECTIONS;
+    private static int idleTimeoutSeconds = DEFAULT_IDLE_TIMEOUT_SECONDS;
+    private static int dnsTimeoutMillis = DEFAULT_DNS_TIMEOUT_MILLIS;
+    private static int connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    private static int tlsTimeoutMillis = DEFAULT_TLS_TIMEOUT_MILLIS;
+    private static int readTimeoutMillis = DEFAULT_READ_TIMEOUT_MILLIS;
+    private static volatile int requestDeadlineMillis = DEFAULT_REQUEST_DEADLINE_MILLIS;
+
+    private static final ScheduledExecutorService deadlines = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "HipChat request deadline");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private static HttpClient client;
+    private static MultiThreadedHttpConnectionManager connectionManager;
+    private static IdleConnectionTimeoutThread idleConnectionEvictor;
+    private static String proxyKey;
+    private static Protocol http;
+    private static Protocol https;
+
+    private HipChatHttpClient() {
+    }
+
+    public static synchronized void configure(int maxConnectionsPerHost, int maxTotalConnections, int idleTimeoutSeconds,
+                                              int dnsTimeoutMillis, int connectTimeoutMillis, int tlsTimeoutMillis,
+                                              int readTimeoutMillis, int requestDeadlineMillis) {
+        HipChatHttpClient.maxConnectionsPerHost = maxConnectionsPerHost;
+        HipChatHttpClient.maxTotalConnections = maxTotalConnections;
+        HipChatHttpClient.idleTimeoutSeconds = idleTimeoutSeconds;
+        HipChatHttpClient.dnsTimeoutMillis = dnsTimeoutMillis;
+        HipChatHttpClient.connectTimeoutMillis = connectTimeoutMillis;
+        HipChatHttpClient.tlsTimeoutMillis = tlsTimeoutMillis;
+        HipChatHttpClient.readTimeoutMillis = readTimeoutMillis;
+        HipChatHttpClient.requestDeadlineMillis = requestDeadlineMillis;
+        retire();
+    }
+
+    public static int getRequestDeadlineMillis() {
+        return requestDeadlineMillis;
+    }
+
+    public static synchronized HttpClient get() {
+        ProxyConfiguration proxy = getProxy();
+        String currentProxyKey = proxy == null ? "" : proxy.name + ":" + proxy.port;
+        if (client == null || !currentProxyKey.equals(proxyKey)) {
+            retire();
+            client = build(proxy);
+            proxyKey = currentProxyKey;
+        }
+        return client;
+    }
+
+    /**
+     * Where to send a request for the given scheme and host (optionally with {@code :port}), going
+     * through the Jenkins proxy if there is one. Requests must be executed with the client
+     * {@link #get()} returned before this call.
+     */
+    public static synchronized HostConfiguration getHostConfiguration(String scheme, String host) {
+        HostConfiguration configuration = new HostConfiguration(get().getHostConfiguration());
+        boolean secure = "https".equalsIgnoreCase(scheme);
+        Protocol protocol = secure ? https : http;
+        int colon = host.lastIndexOf(':');
+        if (colon > 0) {
+            configuration.setHost(host.substring(0, colon), Integer.parseInt(host.substring(colon + 1)), protocol);
+        } else {
+            configuration.setHost(host, protocol.getDefaultPort(), protocol);
+        }
+        return configuration;
+    }
+
+    /**
+     * Aborts the request if it is still running after the given time.
+     */
+    public static Deadline abortAfter(HttpMethod method, long millis) {
+        Deadline deadline = new Deadline(method);
+        deadline.future = deadlines.schedule(deadline, millis, TimeUnit.MILLISECONDS);
+        return deadline;
+    }
+
+    public static final class Deadline implements Runnable {
+        private volatile HttpMethod method;
+        private volatile boolean expired;
+        private volatile ScheduledFuture<?> future;
+
+        Deadline(HttpMethod method) {
+            this.method = method;
+        }
+
+        public void run() {
+            HttpMethod running = method;
+            if (running != null) {
+                expired = true;
+                running.abort();
+            }
+        }
+
+        public boolean isExpired() {
+            return expired;
+        }
+
+        /**
+         * Called once the request is done, whether or not it succeeded.
+         */
+        public void cancel() {
+            // cancelled tasks stay queued until they are due; do not keep the request alive that long
+            method = null;
+            ScheduledFuture<?> scheduled = future;
+            if (scheduled != null) {
+                scheduled.cancel(false);
+            }
+        }
+    }
+
+    static synchronized MultiThreadedHttpConnectionManager getConnectionManager() {
+        return connectionManager;
+    }
+
+    private static HttpClient build(ProxyConfiguration proxy) {
+        connectionManager = new MultiThreadedHttpConnectionManager();
+        HttpConnectionManagerParams params = connectionManager.getParams();
+        params.setDefaultMaxConnectionsPerHost(maxConnectionsPerHost);
+        params.setMaxTotalConnections(Math.max(maxTotalConnections, maxConnectionsPerHost));
+        params.setConnectionTimeout(connectTimeoutMillis);
+        params.setSoTimeout(readTimeoutMillis);
+        params.setStaleCheckingEnabled(true);
+
+        idleConnectionEvictor = new IdleConnectionTimeoutThread();
+        idleConnectionEvictor.setName("HipChat idle connection evictor");
+        idleConnectionEvictor.setConnectionTimeout(idleTimeoutSeconds * 1000L);
+        idleConnectionEvictor.setTimeoutInterval(Math.max(1000L, idleTimeoutSeconds * 1000L / 2));
+        idleConnectionEvictor.setDaemon(true);
+        idleConnectionEvictor.addConnectionManager(connectionManager);
+        idleConnectionEvictor.start();
+
+        http = new Protocol("http", new DeadlineSocketFactory(dnsTimeoutMillis), 80);
+        https = new Protocol("https", new DeadlineSocketFactory.Secure(dnsTimeoutMillis, tlsTimeoutMillis), 443);
+
+        HttpClient httpClient = new HttpClient(connectionManager);
+        if (proxy != null) {
+            httpClient.getHostConfiguration().setProxy(proxy.name, proxy.port);
+        }
+        logger.fine("Created shared HipChat HTTP client (proxy: " + (proxy == null ? "none" : proxy.name) + ")");
+        return httpClient;
+    }
+
+    private static ProxyConfiguration getProxy() {
+        Jenkins jenkins = Jenkins.getInstance();
+        return jenkins != null ? jenkins.proxy : null;
+    }
+
+    /**
+     * Drops the current client so the next call to {@link #get()} builds a fresh one. Requests still
+     * running on the old client are left to finish; its connection manager is shut down once they have
+     * returned their connections.
+     */
+    private static void retire() {
+        if (idleConnectionEvictor != null) {
+            idleConnectionEvictor.shutdown();
+            idleConnectionEvictor = null;
+        }
+        if (connectionManager != null) {
+            // requests cannot outlive their deadline; allow a little for aborting them
+            long giveUpAt = System.currentTimeMillis() + requestDeadlineMillis + RETIRE_POLL_MILLIS;
+            shutdownWhenReleased(connectionManager, giveUpAt);
+            connectionManager = null;
+        }
+        client = null;
+        proxyKey = null;
+    }
+
+    /**
+     * Closes the connections of a retired manager as they are returned, and shuts it down once none is
+     * left in use, or at the latest at {@code giveUpAt}.
+     */
+    private static void shutdownWhenReleased(final MultiThreadedHttpConnectionManager manager, final long giveUpAt) {
+        manager.closeIdleConnections(0);
+        manager.deleteClosedConnections();
+        if (manager.getConnectionsInPool() == 0 || System.currentTimeMillis() >= giveUpAt) {
+            manager.shutdown();
+            return;
+        }
+        deadlines.schedule(new Runnable() {
+            public void run() {
+                shutdownWhenReleased(manager, giveUpAt);
+            }
+        }, RETIRE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Closes every pooled connection. Called once the notification queue has drained at shutdown.
+     */
+    public static synchronized void close() {
+        if (idleConnectionEvictor != null) {
+            idleConnectionEvictor.shutdown();
+            idleConnectionEvictor = null;
+        }
+        if (connectionManager != null) {
+            connectionManager.shutdown();
+            connectionManager = null;
+        }
+        client = null;
+        proxyKey = null;
+    }
+}
@@ -3,12 +3,9 @@ package jenkins.plugins.hipchat;
 import hudson.Extension;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
-import hudson.model.Descriptor;
 import hudson.model.TaskListener;
 import hudson.model.listeners.RunListener;
-import hudson.tasks.Publisher;
 
-import java.util.Map;
 import java.util.logging.Logger;
 
 @Extension
@@ -24,6 +21,7 @@ public class HipChatListener extends RunListener<AbstractBuild> {
     @Override
     public void onCompleted(AbstractBuild r, TaskListener listener) {
         getNotifier(r.getProject()).completed(r);
+        PreviousResults.get().completed(r);
         super.onCompleted(r, listener);
     }
 
@@ -35,6 +33,7 @@ public class HipChatListener extends RunListener<AbstractBuild> {
 
     @Override
     public void onDeleted(AbstractBuild r) {
+        PreviousResults.get().deleted(r);
         // getNotifier(r.getProject()).deleted(r);
         // super.onDeleted(r);
     }
@@ -45,15 +44,8 @@ public class HipChatListener extends RunListener<AbstractBuild> {
         // super.onFinalized(r);
     }
 
-    @SuppressWarnings("unchecked")
     FineGrainedNotifier getNotifier(AbstractProject project) {
-        Map<Descriptor<Publisher>, Publisher> map = project.getPublishersList().toMap();
-        for (Publisher publisher : map.values()) {
-            if (publisher instanceof HipChatNotifier) {
-                return new ActiveNotifier((HipChatNotifier) publisher);
-            }
-        }
-        return new DisabledNotifier();
+        return NotifierCache.get().getNotifier(project);
     }
 
 }
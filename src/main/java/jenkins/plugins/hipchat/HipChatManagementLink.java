@@ -0,0 +1,101 @@
+package jenkins.plugins.hipchat;
+
+import hudson.Extension;
+import hudson.model.Hudson;
+import hudson.model.ManagementLink;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * "Manage Jenkins" page showing HipChat delivery metrics and paused rooms, and answering
+ * {@link DeliveryAudit} queries.
+ */
+@Extension
+public class HipChatManagementLink extends ManagementLink {
+
+    @Override
+    public String getIconFileName() {
+        return "network.png";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "hipchat";
+    }
+
+    public String getDisplayName() {
+        return "HipChat Delivery";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Message counts, latencies and queue depth of HipChat notifications.";
+    }
+
+    public HipChatMetrics getMetrics() {
+        return HipChatMetrics.get();
+    }
+
+    public List<CircuitBreaker> getTrippedBreakers() {
+        return HipChatCircuitBreakers.get().getTripped();
+    }
+
+    public void doResetBreakers(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+        if ("POST".equals(req.getMethod())) {
+            HipChatCircuitBreakers.get().resetAll();
+        }
+        rsp.sendRedirect(".");
+    }
+
+    /**
+     * Recorded deliveries as JSON: those of one build for {@code ?build=folder/job%2312}, or the latest
+     * ones to a room for {@code ?room=Ops&limit=50}.
+     */
+    public void doAudit(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+        String build = req.getParameter("build");
+        String room = req.getParameter("room");
+        List<DeliveryAudit.Record> records;
+        if (build != null) {
+            records = DeliveryAudit.get().getBuildRecords(build);
+        } else if (room != null) {
+            records = DeliveryAudit.get().getRoomRecords(room, parseLimit(req.getParameter("limit")));
+        } else {
+            rsp.sendError(StaplerResponse.SC_BAD_REQUEST, "Specify a build or a room");
+            return;
+        }
+        JSONArray json = new JSONArray();
+        for (DeliveryAudit.Record record : records) {
+            JSONObject o = new JSONObject();
+            o.put("time", record.getTime());
+            o.put("build", record.getBuild());
+            o.put("event", record.getEvent());
+            o.put("room", record.getRoom());
+            o.put("success", record.isSuccess());
+            o.put("responseCode", record.getResponseCode());
+            o.put("latencyMillis", record.getLatencyMillis());
+            o.put("attempts", record.getAttempts());
+            if (record.getError() != null) {
+                o.put("error", record.getError());
+            }
+            json.add(o);
+        }
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(json.toString());
+    }
+
+    private static int parseLimit(String value) {
+        try {
+            int limit = Integer.parseInt(value);
+            return limit > 0 ? limit : DeliveryAudit.MAX_RECORDS_PER_ROOM;
+        } catch (NumberFormatException e) {
+            return DeliveryAudit.MAX_RECORDS_PER_ROOM;
+        }
+    }
+}
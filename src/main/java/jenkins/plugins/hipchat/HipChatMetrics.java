@@ -0,0 +1,185 @@
+package jenkins.plugins.hipchat;
+
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Delivery counters and latency histograms for the HipChat sender, shown on the HipChat
+ * management page and exported over JMX.
+ * <p>
+ * Notifications are counted when they are queued or dropped before delivery; one notification
+ * may go to several rooms. Everything else, including the latencies, counts room deliveries.
+ */
+public final class HipChatMetrics implements HipChatMetricsMBean {
+
+    private static final Logger logger = Logger.getLogger(HipChatMetrics.class.getName());
+
+    public static final String OBJECT_NAME = "jenkins.plugins.hipchat:type=Metrics";
+
+    private static final HipChatMetrics INSTANCE = new HipChatMetrics();
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+        } catch (Exception e) {
+            logger.log(Level.FINE, "Could not register HipChat metrics MBean", e);
+        }
+    }
+
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong refused = new AtomicLong();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final ConcurrentMap<String, LatencyHistogram> roomLatency = new ConcurrentHashMap<String, LatencyHistogram>();
+
+    public static HipChatMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Counts a notification handed to the dispatcher or the outbox, whatever the number of rooms.
+     */
+    public void queued() {
+        queued.incrementAndGet();
+    }
+
+    public void retried() {
+        retried.incrementAndGet();
+    }
+
+    /**
+     * Counts a notification dropped before it was delivered to any room.
+     */
+    public void dropped() {
+        dropped.incrementAndGet();
+    }
+
+    public void dropped(int count) {
+        dropped.addAndGet(count);
+    }
+
+    /**
+     * Counts a delivery refused by an open circuit breaker.
+     */
+    public void refused() {
+        refused.incrementAndGet();
+    }
+
+    /**
+     * Counts a room delivery given up on without a last attempt, e.g. an outbox entry that was
+     * undeliverable for too long.
+     */
+    public void gaveUp() {
+        failed.incrementAndGet();
+    }
+
+    /**
+     * Records the final outcome of a room delivery, after any retries.
+     */
+    public void delivered(RoomDeliveryResult result) {
+        (result.isSuccess() ? sent : failed).incrementAndGet();
+        latency.record(result.getLatencyMillis());
+        getRoomHistogram(result.getRoom()).record(result.getLatencyMillis());
+    }
+
+    private LatencyHistogram getRoomHistogram(String room) {
+        LatencyHistogram histogram = roomLatency.get(room);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = roomLatency.putIfAbsent(room, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    public long getQueued() {
+        return queued.get();
+    }
+
+    public long getSent() {
+        return sent.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getRetried() {
+        return retried.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getRefused() {
+        return refused.get();
+    }
+
+    public int getQueueDepth() {
+        return HipChatDispatcher.get().getQueueDepth();
+    }
+
+    public long getOutboxPendingBytes() {
+        return HipChatOutbox.get().getPendingBytes();
+    }
+
+    public int getPooledConnections() {
+        MultiThreadedHttpConnectionManager connectionManager = HipChatHttpClient.getConnectionManager();
+        return connectionManager != null ? connectionManager.getConnectionsInPool() : 0;
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    public long getLatencyMeanMillis() {
+        return latency.getMean();
+    }
+
+    public long getLatencyP50Millis() {
+        return latency.getPercentile(50);
+    }
+
+    public long getLatencyP95Millis() {
+        return latency.getPercentile(95);
+    }
+
+    public long getLatencyP99Millis() {
+        return latency.getPercentile(99);
+    }
+
+    public long getLatencyMaxMillis() {
+        return latency.getMax();
+    }
+
+    public long getRoomLatencyMillis(String room, double percentile) {
+        LatencyHistogram histogram = roomLatency.get(room);
+        return histogram != null ? histogram.getPercentile(percentile) : 0;
+    }
+
+    public String[] getRooms() {
+        return getRoomLatencies().keySet().toArray(new String[0]);
+    }
+
+    /**
+     * Latency histograms by room, sorted by room name.
+     */
+    public Map<String, LatencyHistogram> getRoomLatencies() {
+        return new TreeMap<String, LatencyHistogram>(roomLatency);
+    }
+}
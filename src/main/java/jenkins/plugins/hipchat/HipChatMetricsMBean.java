@@ -0,0 +1,60 @@
+package jenkins.plugins.hipchat;
+
+/**
+ * JMX view of {@link HipChatMetrics}, registered as {@code jenkins.plugins.hipchat:type=Metrics}.
+ */
+public interface HipChatMetricsMBean {
+
+    /**
+     * Notifications queued for delivery; one notification may go to several rooms.
+     */
+    long getQueued();
+
+    /**
+     * Room deliveries that succeeded.
+     */
+    long getSent();
+
+    /**
+     * Room deliveries that failed after their retries.
+     */
+    long getFailed();
+
+    /**
+     * Room delivery attempts that were retried.
+     */
+    long getRetried();
+
+    /**
+     * Notifications dropped before delivery, e.g. because the queue was full.
+     */
+    long getDropped();
+
+    /**
+     * Room deliveries refused because the room was paused.
+     */
+    long getRefused();
+
+    int getQueueDepth();
+
+    long getOutboxPendingBytes();
+
+    int getPooledConnections();
+
+    long getLatencyMeanMillis();
+
+    long getLatencyP50Millis();
+
+    long getLatencyP95Millis();
+
+    long getLatencyP99Millis();
+
+    long getLatencyMaxMillis();
+
+    /**
+     * Latency percentile for one room, or 0 if nothing was sent to it.
+     */
+    long getRoomLatencyMillis(String room, double percentile);
+
+    String[] getRooms();
+}
@@ -2,6 +2,8 @@ package jenkins.plugins.hipchat;
 
 import hudson.Extension;
 import hudson.Launcher;
+import hudson.Util;
+import hudson.matrix.MatrixRun;
 import hudson.model.*;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.BuildStepMonitor;
@@ -14,7 +16,7 @@ import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.export.Exported;
 
 import java.io.IOException;
-import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 @SuppressWarnings({"unchecked"})
@@ -63,7 +65,7 @@ public class HipChatNotifier extends Notifier {
     }
 
     public HipChatService newHipChatService(final String room) {
-        return new StandardHipChatService(getAuthToken(), room == null ? getRoom() : room, StringUtils.isBlank(getSendAs()) ? "Build Server" : getSendAs());
+        return DeliveryTarget.of(this, room).newService(null);
     }
 
     @Override
@@ -77,9 +79,40 @@ public class HipChatNotifier extends Notifier {
         private String room;
         private String buildServerUrl;
         private String sendAs;
+        private String apiVersion;
+        private int dispatcherThreads;
+        private int dispatcherQueueCapacity;
+        private String dispatcherOverflowPolicy;
+        private int maxConnectionsPerHost;
+        private int maxTotalConnections;
+        private int idleConnectionTimeout;
+        private int dnsTimeout;
+        private int connectTimeout;
+        private int tlsTimeout;
+        private int readTimeout;
+        private int requestDeadline;
+        private int roomParallelism;
+        private boolean virtualThreads;
+        private int maxInFlightRequests;
+        private int digestWindow;
+        private int digestMaxMessages;
+        private boolean digestSendFailuresImmediately = true;
+        private int tokenRequestLimit;
+        private int roomRequestLimit;
+        private Integer maxRetries;
+        private int circuitBreakerFailures;
+        private int circuitBreakerOpenTime;
+        private boolean durableDelivery;
+        private int outboxMaxAge;
+        private boolean sharedOutbox;
+        private int outboxLease;
+        private int changeFileLimit;
+        private String startTemplate;
+        private String completedTemplate;
 
         public DescriptorImpl() {
             load();
+            applySettings();
         }
 
         public String getToken() {
@@ -98,6 +131,126 @@ public class HipChatNotifier extends Notifier {
             return sendAs;
         }
 
+        public String getApiVersion() {
+            return HipChatApi.parse(apiVersion).name();
+        }
+
+        public int getDispatcherThreads() {
+            return dispatcherThreads > 0 ? dispatcherThreads : HipChatDispatcher.DEFAULT_THREADS;
+        }
+
+        public int getDispatcherQueueCapacity() {
+            return dispatcherQueueCapacity > 0 ? dispatcherQueueCapacity : HipChatDispatcher.DEFAULT_QUEUE_CAPACITY;
+        }
+
+        public String getDispatcherOverflowPolicy() {
+            return HipChatDispatcher.OverflowPolicy.parse(dispatcherOverflowPolicy).name();
+        }
+
+        public int getMaxConnectionsPerHost() {
+            return maxConnectionsPerHost > 0 ? maxConnectionsPerHost : HipChatHttpClient.DEFAULT_MAX_CONNECTIONS_PER_HOST;
+        }
+
+        public int getMaxTotalConnections() {
+            return maxTotalConnections > 0 ? maxTotalConnections : HipChatHttpClient.DEFAULT_MAX_TOTAL_CONNECTIONS;
+        }
+
+        public int getIdleConnectionTimeout() {
+            return idleConnectionTimeout > 0 ? idleConnectionTimeout : HipChatHttpClient.DEFAULT_IDLE_TIMEOUT_SECONDS;
+        }
+
+        public int getDnsTimeout() {
+            return dnsTimeout > 0 ? dnsTimeout : HipChatHttpClient.DEFAULT_DNS_TIMEOUT_MILLIS;
+        }
+
+        public int getConnectTimeout() {
+            return connectTimeout > 0 ? connectTimeout : HipChatHttpClient.DEFAULT_CONNECT_TIMEOUT_MILLIS;
+        }
+
+        public int getTlsTimeout() {
+            return tlsTimeout > 0 ? tlsTimeout : HipChatHttpClient.DEFAULT_TLS_TIMEOUT_MILLIS;
+        }
+
+        public int getReadTimeout() {
+            return readTimeout > 0 ? readTimeout : HipChatHttpClient.DEFAULT_READ_TIMEOUT_MILLIS;
+        }
+
+        public int getRequestDeadline() {
+            return requestDeadline > 0 ? requestDeadline : HipChatHttpClient.DEFAULT_REQUEST_DEADLINE_MILLIS;
+        }
+
+        public int getRoomParallelism() {
+            return roomParallelism > 0 ? roomParallelism : DeliveryExecutor.DEFAULT_PARALLELISM;
+        }
+
+        public boolean getVirtualThreads() {
+            return virtualThreads;
+        }
+
+        public int getMaxInFlightRequests() {
+            return maxInFlightRequests > 0 ? maxInFlightRequests : DeliveryExecutor.DEFAULT_MAX_IN_FLIGHT;
+        }
+
+        public int getDigestWindow() {
+            return digestWindow;
+        }
+
+        public int getDigestMaxMessages() {
+            return digestMaxMessages > 0 ? digestMaxMessages : NotificationCoalescer.DEFAULT_MAX_MESSAGES;
+        }
+
+        public boolean getDigestSendFailuresImmediately() {
+            return digestSendFailuresImmediately;
+        }
+
+        public int getTokenRequestLimit() {
+            return tokenRequestLimit > 0 ? tokenRequestLimit : HipChatRateLimiter.DEFAULT_TOKEN_REQUESTS;
+        }
+
+        public int getRoomRequestLimit() {
+            return roomRequestLimit > 0 ? roomRequestLimit : HipChatRateLimiter.DEFAULT_ROOM_REQUESTS;
+        }
+
+        public int getMaxRetries() {
+            return maxRetries != null ? maxRetries : HipChatRateLimiter.DEFAULT_MAX_RETRIES;
+        }
+
+        public int getCircuitBreakerFailures() {
+            return circuitBreakerFailures > 0 ? circuitBreakerFailures : HipChatCircuitBreakers.DEFAULT_FAILURE_THRESHOLD;
+        }
+
+        public int getCircuitBreakerOpenTime() {
+            return circuitBreakerOpenTime > 0 ? circuitBreakerOpenTime : HipChatCircuitBreakers.DEFAULT_OPEN_SECONDS;
+        }
+
+        public boolean getDurableDelivery() {
+            return durableDelivery;
+        }
+
+        public int getOutboxMaxAge() {
+            return outboxMaxAge > 0 ? outboxMaxAge : HipChatOutbox.DEFAULT_MAX_AGE_HOURS;
+        }
+
+        public boolean getSharedOutbox() {
+            return sharedOutbox;
+        }
+
+        public int getOutboxLease() {
+            return outboxLease > 0 ? outboxLease : HipChatOutbox.DEFAULT_LEASE_SECONDS;
+        }
+
+        public int getChangeFileLimit() {
+            return changeFileLimit > 0 ? changeFileLimit : ChangeSummary.DEFAULT_EXACT_FILE_LIMIT;
+        }
+
+        public String getStartTemplate() {
+            return StringUtils.isBlank(startTemplate) ? MessageTemplate.DEFAULT_STARTED : startTemplate;
+        }
+
+        public String getCompletedTemplate() {
+            return StringUtils.isBlank(completedTemplate) ? MessageTemplate.DEFAULT_COMPLETED : completedTemplate;
+        }
+
         public boolean isApplicable(Class<? extends AbstractProject> aClass) {
             return true;
         }
@@ -117,6 +270,36 @@ public class HipChatNotifier extends Notifier {
             room = sr.getParameter("hipChatRoom");
             buildServerUrl = sr.getParameter("hipChatBuildServerUrl");
             sendAs = sr.getParameter("hipChatSendAs");
+            apiVersion = HipChatApi.parse(sr.getParameter("hipChatApiVersion")).name();
+            dispatcherThreads = parseInt(sr.getParameter("hipChatDispatcherThreads"), HipChatDispatcher.DEFAULT_THREADS);
+            dispatcherQueueCapacity = parseInt(sr.getParameter("hipChatDispatcherQueueCapacity"), HipChatDispatcher.DEFAULT_QUEUE_CAPACITY);
+            dispatcherOverflowPolicy = HipChatDispatcher.OverflowPolicy.parse(sr.getParameter("hipChatDispatcherOverflowPolicy")).name();
+            maxConnectionsPerHost = parseInt(sr.getParameter("hipChatMaxConnectionsPerHost"), HipChatHttpClient.DEFAULT_MAX_CONNECTIONS_PER_HOST);
+            maxTotalConnections = parseInt(sr.getParameter("hipChatMaxTotalConnections"), HipChatHttpClient.DEFAULT_MAX_TOTAL_CONNECTIONS);
+            idleConnectionTimeout = parseInt(sr.getParameter("hipChatIdleConnectionTimeout"), HipChatHttpClient.DEFAULT_IDLE_TIMEOUT_SECONDS);
+            dnsTimeout = parseInt(sr.getParameter("hipChatDnsTimeout"), HipChatHttpClient.DEFAULT_DNS_TIMEOUT_MILLIS);
+            connectTimeout = parseInt(sr.getParameter("hipChatConnectTimeout"), HipChatHttpClient.DEFAULT_CONNECT_TIMEOUT_MILLIS);
+            tlsTimeout = parseInt(sr.getParameter("hipChatTlsTimeout"), HipChatHttpClient.DEFAULT_TLS_TIMEOUT_MILLIS);
+            readTimeout = parseInt(sr.getParameter("hipChatReadTimeout"), HipChatHttpClient.DEFAULT_READ_TIMEOUT_MILLIS);
+            requestDeadline = parseInt(sr.getParameter("hipChatRequestDeadline"), HipChatHttpClient.DEFAULT_REQUEST_DEADLINE_MILLIS);
+            roomParallelism = parseInt(sr.getParameter("hipChatRoomParallelism"), DeliveryExecutor.DEFAULT_PARALLELISM);
+            virtualThreads = sr.getParameter("hipChatVirtualThreads") != null;
+            maxInFlightRequests = parseInt(sr.getParameter("hipChatMaxInFlightRequests"), DeliveryExecutor.DEFAULT_MAX_IN_FLIGHT);
+            digestWindow = parseInt(sr.getParameter("hipChatDigestWindow"), 0);
+            digestMaxMessages = parseInt(sr.getParameter("hipChatDigestMaxMessages"), NotificationCoalescer.DEFAULT_MAX_MESSAGES);
+            digestSendFailuresImmediately = sr.getParameter("hipChatDigestSendFailuresImmediately") != null;
+            tokenRequestLimit = parseInt(sr.getParameter("hipChatTokenRequestLimit"), HipChatRateLimiter.DEFAULT_TOKEN_REQUESTS);
+            roomRequestLimit = parseInt(sr.getParameter("hipChatRoomRequestLimit"), HipChatRateLimiter.DEFAULT_ROOM_REQUESTS);
+            maxRetries = parseNonNegativeInt(sr.getParameter("hipChatMaxRetries"), HipChatRateLimiter.DEFAULT_MAX_RETRIES);
+            circuitBreakerFailures = parseInt(sr.getParameter("hipChatCircuitBreakerFailures"), HipChatCircuitBreakers.DEFAULT_FAILURE_THRESHOLD);
+            circuitBreakerOpenTime = parseInt(sr.getParameter("hipChatCircuitBreakerOpenTime"), HipChatCircuitBreakers.DEFAULT_OPEN_SECONDS);
+            durableDelivery = sr.getParameter("hipChatDurableDelivery") != null;
+            outboxMaxAge = parseInt(sr.getParameter("hipChatOutboxMaxAge"), HipChatOutbox.DEFAULT_MAX_AGE_HOURS);
+            sharedOutbox = sr.getParameter("hipChatSharedOutbox") != null;
+            outboxLease = parseInt(sr.getParameter("hipChatOutboxLease"), HipChatOutbox.DEFAULT_LEASE_SECONDS);
+            changeFileLimit = parseInt(sr.getParameter("hipChatChangeFileLimit"), ChangeSummary.DEFAULT_EXACT_FILE_LIMIT);
+            startTemplate = Util.fixEmptyAndTrim(sr.getParameter("hipChatStartTemplate"));
+            completedTemplate = Util.fixEmptyAndTrim(sr.getParameter("hipChatCompletedTemplate"));
             if (buildServerUrl != null && !buildServerUrl.endsWith("/")) {
                 buildServerUrl = buildServerUrl + "/";
             }
@@ -125,10 +308,51 @@ public class HipChatNotifier extends Notifier {
             } catch (Exception e) {
                 throw new FormException("Failed to initialize notifier - check your global notifier configuration settings", e, "");
             }
+            long minLeaseMillis = HipChatOutbox.getMinLeaseMillis(getRequestDeadline());
+            if (sharedOutbox && TimeUnit.SECONDS.toMillis(getOutboxLease()) <= minLeaseMillis) {
+                throw new FormException("The outbox lease must be longer than the request deadline plus the longest backoff, i.e. over "
+                        + TimeUnit.MILLISECONDS.toSeconds(minLeaseMillis) + " seconds", "hipChatOutboxLease");
+            }
             save();
+            applySettings();
             return super.configure(sr, formData);
         }
 
+        private void applySettings() {
+            HipChatApi.configure(HipChatApi.parse(apiVersion));
+            HipChatDispatcher.get().configure(getDispatcherThreads(), getDispatcherQueueCapacity(),
+                    HipChatDispatcher.OverflowPolicy.parse(dispatcherOverflowPolicy));
+            HipChatHttpClient.configure(getMaxConnectionsPerHost(), getMaxTotalConnections(), getIdleConnectionTimeout(),
+                    getDnsTimeout(), getConnectTimeout(), getTlsTimeout(), getReadTimeout(), getRequestDeadline());
+            DeliveryExecutor.get().configure(getRoomParallelism(), getVirtualThreads(), getMaxInFlightRequests());
+            NotificationCoalescer.get().configure(getDigestWindow(), getDigestMaxMessages(), getDigestSendFailuresImmediately());
+            HipChatRateLimiter.get().configure(getTokenRequestLimit(), getRoomRequestLimit(), getMaxRetries());
+            HipChatCircuitBreakers.get().configure(getCircuitBreakerFailures(), getCircuitBreakerOpenTime());
+            HipChatOutbox.get().configure(getDurableDelivery(), getOutboxMaxAge(), getSharedOutbox(), getOutboxLease());
+            ChangeSummary.configure(getChangeFileLimit());
+            MessageTemplate.clearCache();
+            // delivery targets depend on the API version and outbox settings
+            NotifierCache.get().clear();
+        }
+
+        private static int parseInt(String value, int defaultValue) {
+            try {
+                int parsed = Integer.parseInt(StringUtils.trimToEmpty(value));
+                return parsed > 0 ? parsed : defaultValue;
+            } catch (NumberFormatException e) {
+                return defaultValue;
+            }
+        }
+
+        private static int parseNonNegativeInt(String value, int defaultValue) {
+            try {
+                int parsed = Integer.parseInt(StringUtils.trimToEmpty(value));
+                return parsed >= 0 ? parsed : defaultValue;
+            } catch (NumberFormatException e) {
+                return defaultValue;
+            }
+        }
+
         @Override
         public String getDisplayName() {
             return "HipChat Notifications";
@@ -144,7 +368,24 @@ public class HipChatNotifier extends Notifier {
         private boolean notifyUnstable;
         private boolean notifyFailure;
         private boolean notifyBackToNormal;
+        private String startTemplate;
+        private String completedTemplate;
+        private boolean suppressRepeats;
+        private int repeatEveryBuilds;
+        private int repeatAfterMinutes;
+        private boolean notifyMatrixConfigurations;
 
+        public HipChatJobProperty(String room,
+                                  boolean startNotification,
+                                  boolean notifyAborted,
+                                  boolean notifyFailure,
+                                  boolean notifyNotBuilt,
+                                  boolean notifySuccess,
+                                  boolean notifyUnstable,
+                                  boolean notifyBackToNormal) {
+            this(room, startNotification, notifyAborted, notifyFailure, notifyNotBuilt, notifySuccess, notifyUnstable,
+                    notifyBackToNormal, null, null, false, 0, 0, false);
+        }
 
         @DataBoundConstructor
         public HipChatJobProperty(String room,
@@ -154,8 +395,20 @@ public class HipChatNotifier extends Notifier {
                                   boolean notifyNotBuilt,
                                   boolean notifySuccess,
                                   boolean notifyUnstable,
-                                  boolean notifyBackToNormal) {
+                                  boolean notifyBackToNormal,
+                                  String startTemplate,
+                                  String completedTemplate,
+                                  boolean suppressRepeats,
+                                  int repeatEveryBuilds,
+                                  int repeatAfterMinutes,
+                                  boolean notifyMatrixConfigurations) {
             this.room = room;
+            this.notifyMatrixConfigurations = notifyMatrixConfigurations;
+            this.suppressRepeats = suppressRepeats;
+            this.repeatEveryBuilds = Math.max(repeatEveryBuilds, 0);
+            this.repeatAfterMinutes = Math.max(repeatAfterMinutes, 0);
+            this.startTemplate = Util.fixEmptyAndTrim(startTemplate);
+            this.completedTemplate = Util.fixEmptyAndTrim(completedTemplate);
             this.startNotification = startNotification;
             this.notifyAborted = notifyAborted;
             this.notifyFailure = notifyFailure;
@@ -182,13 +435,11 @@ public class HipChatNotifier extends Notifier {
 
         @Override
         public boolean prebuild(AbstractBuild<?, ?> build, BuildListener listener) {
-            if (startNotification) {
-                Map<Descriptor<Publisher>, Publisher> map = build.getProject().getPublishersList().toMap();
-                for (Publisher publisher : map.values()) {
-                    if (publisher instanceof HipChatNotifier) {
-                        logger.info("Invoking Started...");
-                        new ActiveNotifier((HipChatNotifier) publisher).started(build);
-                    }
+            if (startNotification && (notifyMatrixConfigurations || !(build instanceof MatrixRun))) {
+                FineGrainedNotifier notifier = NotifierCache.get().getNotifier(build.getProject());
+                if (notifier instanceof ActiveNotifier) {
+                    logger.fine("Invoking Started...");
+                    notifier.started(build);
                 }
             }
             return super.prebuild(build, listener);
@@ -219,6 +470,55 @@ public class HipChatNotifier extends Notifier {
             return notifyBackToNormal;
         }
 
+        /**
+         * Message template for build start notifications, or null to use the global one.
+         */
+        @Exported
+        public String getStartTemplate() {
+            return startTemplate;
+        }
+
+        /**
+         * Message template for build completion notifications, or null to use the global one.
+         */
+        @Exported
+        public String getCompletedTemplate() {
+            return completedTemplate;
+        }
+
+        /**
+         * Whether a completion with the same result as the previous one is only reported again once
+         * {@link #getRepeatEveryBuilds()} builds or {@link #getRepeatAfterMinutes()} minutes have passed.
+         */
+        @Exported
+        public boolean getSuppressRepeats() {
+            return suppressRepeats;
+        }
+
+        /**
+         * Builds after which an unchanged status is reported again, or 0 to report transitions only.
+         */
+        @Exported
+        public int getRepeatEveryBuilds() {
+            return repeatEveryBuilds;
+        }
+
+        /**
+         * Minutes after which an unchanged status is reported again, or 0 to report transitions only.
+         */
+        @Exported
+        public int getRepeatAfterMinutes() {
+            return repeatAfterMinutes;
+        }
+
+        /**
+         * Whether each configuration of a matrix build is reported as well as the matrix build.
+         */
+        @Exported
+        public boolean getNotifyMatrixConfigurations() {
+            return notifyMatrixConfigurations;
+        }
+
         @Extension
         public static final class DescriptorImpl extends JobPropertyDescriptor {
             public String getDisplayName() {
@@ -239,7 +539,13 @@ public class HipChatNotifier extends Notifier {
                         sr.getParameter("hipChatNotifyNotBuilt") != null,
                         sr.getParameter("hipChatNotifySuccess") != null,
                         sr.getParameter("hipChatNotifyUnstable") != null,
-                        sr.getParameter("hipChatNotifyBackToNormal") != null);
+                        sr.getParameter("hipChatNotifyBackToNormal") != null,
+                        sr.getParameter("hipChatStartTemplate"),
+                        sr.getParameter("hipChatCompletedTemplate"),
+                        sr.getParameter("hipChatSuppressRepeats") != null,
+                        HipChatNotifier.DescriptorImpl.parseNonNegativeInt(sr.getParameter("hipChatRepeatEveryBuilds"), 0),
+                        HipChatNotifier.DescriptorImpl.parseNonNegativeInt(sr.getParameter("hipChatRepeatAfterMinutes"), 0),
+                        sr.getParameter("hipChatNotifyMatrixConfigurations") != null);
             }
         }
     }
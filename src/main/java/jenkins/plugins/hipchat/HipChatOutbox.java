@@ -0,0 +1,288 @@
+package jenkins.plugins.hipchat;
+
+import jenkins.model.Jenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Durable delivery: notifications are written to an {@link OutboxJournal} under
+ * {@code JENKINS_HOME/hipchat-outbox} and delivered from there by a background drainer, so they
+ * survive HipChat outages and Jenkins restarts.
+ * <p>
+ * Delivery is at least once. An entry is only removed after HipChat accepted it or rejected it
+ * for good; entries that HipChat could not be reached for are retried with backoff until they
+ * exceed the configured maximum age. The backoff is per room: a room that is throttled or down is
+ * set aside until its next attempt is due while the entries for other rooms are delivered.
+ * <p>
+ * Masters that share a {@code JENKINS_HOME}, such as an active/standby pair, use a
+ * {@link SharedOutboxQueue} under {@code JENKINS_HOME/hipchat-outbox-shared} instead: all of them
+ * queue notifications there and whichever holds the lease delivers them.
+ */
+public final class HipChatOutbox {
+
+    private static final Logger logger = Logger.getLogger(HipChatOutbox.class.getName());
+
+    public static final String DIRECTORY = "hipchat-outbox";
+    public static final String SHARED_DIRECTORY = "hipchat-outbox-shared";
+    public static final int DEFAULT_MAX_AGE_HOURS = 24;
+    // longer than a delivery attempt and the longest backoff after it
+    public static final int DEFAULT_LEASE_SECONDS = 180;
+    static final long SYNC_INTERVAL_MILLIS = 200;
+    static final int SYNC_BATCH_SIZE = 64;
+    static final long IDLE_POLL_MILLIS = 1000;
+
+    private static final HipChatOutbox INSTANCE = new HipChatOutbox();
+
+    private final Object signal = new Object();
+    private final ScheduledExecutorService syncer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "HipChat outbox sync");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private volatile OutboxQueue queue;
+    private Thread drainer;
+    private ScheduledFuture<?> syncTask;
+    private volatile boolean enabled;
+    private boolean shared;
+    private volatile boolean running;
+    private volatile long maxAgeMillis = TimeUnit.HOURS.toMillis(DEFAULT_MAX_AGE_HOURS);
+
+    public static HipChatOutbox get() {
+        return INSTANCE;
+    }
+
+    public void configure(boolean enabled, int maxAgeHours) {
+        configure(enabled, maxAgeHours, false, DEFAULT_LEASE_SECONDS);
+    }
+
+    /**
+     * Turns durable delivery on or off. When it is switched off, entries already in the outbox are
+     * still drained. Switching between the local and the shared outbox leaves the entries of the other
+     * one until it is used again.
+     *
+     * @param shared       whether to use the outbox shared with other masters
+     * @param leaseSeconds how long another master waits for the one delivering from the shared outbox
+     *                     before taking over
+     */
+    public synchronized void configure(boolean enabled, int maxAgeHours, boolean shared, int leaseSeconds) {
+        this.enabled = enabled;
+        this.maxAgeMillis = TimeUnit.HOURS.toMillis(maxAgeHours > 0 ? maxAgeHours : DEFAULT_MAX_AGE_HOURS);
+        if (queue != null && this.shared != shared) {
+            shutdown();
+        }
+        this.shared = shared;
+        File dir = getDirectory(shared);
+        if (dir != null && (enabled || dir.isDirectory())) {
+            try {
+                if (queue == null) {
+                    long leaseMillis = TimeUnit.SECONDS.toMillis(leaseSeconds > 0 ? leaseSeconds : DEFAULT_LEASE_SECONDS);
+                    open(shared ? new SharedOutboxQueue(dir, getNodeName(), leaseMillis) : new OutboxJournal(dir));
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not open HipChat outbox in " + dir, e);
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled && queue != null;
+    }
+
+    public void enqueue(OutboxEntry entry) throws IOException {
+        OutboxQueue current = queue;
+        if (current == null) {
+            throw new IOException("HipChat outbox is not open");
+        }
+        if (current.isDelivered(entry.key)) {
+            logger.fine("Skipping already delivered HipChat notification " + entry.key);
+            return;
+        }
+        current.append(entry);
+        if (current.getUnsynced() >= SYNC_BATCH_SIZE) {
+            current.sync();
+        }
+        synchronized (signal) {
+            signal.notifyAll();
+        }
+    }
+
+    public long getPendingBytes() {
+        OutboxQueue current = queue;
+        return current != null ? current.getPendingBytes() : 0;
+    }
+
+    /**
+     * How long the master delivering from the shared outbox can go without renewing its lease: one
+     * delivery attempt, bounded by the request deadline, and the longest backoff after it. The lease
+     * has to be longer, or a standby takes over while a delivery is still under way.
+     */
+    public static long getMinLeaseMillis(int requestDeadlineMillis) {
+        return requestDeadlineMillis + HipChatRateLimiter.MAX_BACKOFF_MILLIS;
+    }
+
+    private static File getDirectory(boolean shared) {
+        Jenkins jenkins = Jenkins.getInstance();
+        return jenkins != null ? new File(jenkins.getRootDir(), shared ? SHARED_DIRECTORY : DIRECTORY) : null;
+    }
+
+    /**
+     * Names this master in the shared outbox lease: the host name, and a part that differs on every start
+     * so that a restarted master does not mistake its predecessor's lease for its own.
+     */
+    private static String getNodeName() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (IOException e) {
+            host = "jenkins";
+        }
+        return host + "-" + UUID.randomUUID().toString().substring(0, 8);
+    }
+
+    synchronized void open(final OutboxQueue opened) {
+        queue = opened;
+        running = true;
+        drainer = new Thread(new Runnable() {
+            public void run() {
+                drain(opened);
+            }
+        }, "HipChat outbox drainer");
+        drainer.setDaemon(true);
+        drainer.start();
+        // on its own thread, as the drainer can be held up by HipChat for minutes
+        syncTask = syncer.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    opened.sync();
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Could not sync HipChat outbox", e);
+                }
+            }
+        }, SYNC_INTERVAL_MILLIS, SYNC_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the drainer and forces the queue to disk. Undelivered entries stay in the queue for
+     * the next start.
+     */
+    public synchronized void shutdown() {
+        if (queue == null) {
+            return;
+        }
+        running = false;
+        syncTask.cancel(false);
+        drainer.interrupt();
+        try {
+            drainer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            queue.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not close HipChat outbox", e);
+        }
+        queue = null;
+    }
+
+    private void drain(OutboxQueue queue) {
+        // rooms set aside after a transient failure, with when to try them again
+        Map<String, Long> parked = new HashMap<String, Long>();
+        Map<String, Integer> failures = new HashMap<String, Integer>();
+        while (running) {
+            try {
+                long now = System.currentTimeMillis();
+                long nextAttempt = Long.MAX_VALUE;
+                for (Iterator<Long> it = parked.values().iterator(); it.hasNext(); ) {
+                    long retryAt = it.next();
+                    if (retryAt <= now) {
+                        it.remove();
+                    } else {
+                        nextAttempt = Math.min(nextAttempt, retryAt);
+                    }
+                }
+                OutboxEntry entry = queue.peek(parked.keySet());
+                if (entry == null) {
+                    synchronized (signal) {
+                        signal.wait(Math.max(1, Math.min(IDLE_POLL_MILLIS, nextAttempt - now)));
+                    }
+                    continue;
+                }
+                if (queue.isDelivered(entry.key)) {
+                    logger.fine("Skipping already delivered HipChat notification " + entry.key);
+                } else if (now - entry.createdAt > maxAgeMillis) {
+                    logger.warning("Dropping HipChat notification " + entry.key + " for room " + entry.room
+                            + ", undeliverable for too long");
+                    HipChatMetrics.get().gaveUp();
+                    if (entry.key != null) {
+                        DeliveryAudit.get().record(getMessageKey(entry), new RoomDeliveryResult(entry.room, false, 0,
+                                now - entry.createdAt, "dropped from outbox"));
+                    }
+                } else {
+                    RoomDeliveryResult result = HipChatApi.get().newService(entry.token, entry.room, entry.from)
+                            .deliverToRoom(entry.room, entry.message, entry.color, getMessageKey(entry));
+                    if (!result.isSuccess() && isTransient(result)) {
+                        Integer failed = failures.get(entry.room);
+                        failed = failed == null ? 0 : failed;
+                        long delay = HipChatRateLimiter.get().backoffMillis(failed);
+                        failures.put(entry.room, failed + 1);
+                        parked.put(entry.room, System.currentTimeMillis() + delay);
+                        logger.info("HipChat room " + entry.room + " unavailable (" + result.getError()
+                                + "), outbox delivery to it paused for " + delay + "ms");
+                        continue;
+                    }
+                    failures.remove(entry.room);
+                }
+                queue.ack(entry);
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "HipChat outbox error", e);
+                try {
+                    Thread.sleep(IDLE_POLL_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * The key of the message an entry was queued for, i.e. the entry key without the room.
+     */
+    static String getMessageKey(OutboxEntry entry) {
+        if (entry.key == null) {
+            return null;
+        }
+        String suffix = "@" + entry.room;
+        return entry.key.endsWith(suffix) ? entry.key.substring(0, entry.key.length() - suffix.length()) : entry.key;
+    }
+
+    /**
+     * Whether a failed delivery is worth retrying later, i.e. HipChat was unreachable or overloaded
+     * rather than rejecting the message.
+     */
+    static boolean isTransient(RoomDeliveryResult result) {
+        if (result.getFailure() != null && result.getFailure().isRetryable()) {
+            return true;
+        }
+        // also the code of the failure that paused the room
+        int code = result.getResponseCode();
+        return code == 0 || code == 429 || code >= 500;
+    }
+}
@@ -0,0 +1,168 @@
+package jenkins.plugins.hipchat;
+
+import org.apache.commons.httpclient.util.DateParseException;
+import org.apache.commons.httpclient.util.DateUtil;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps HipChat API calls within the published quotas and decides how long to back off after
+ * HipChat pushes back.
+ * <p>
+ * Every request takes a permit from a bucket for its API token and from one for its room. When
+ * either bucket is empty a {@link #reserve reservation} says how long the request has to wait, so
+ * a burst of notifications is smoothed out rather than dropped; the sender schedules the request
+ * for then instead of holding a thread. A sender that cannot wait uses {@link #tryAcquire} and
+ * tries again later.
+ */
+public final class HipChatRateLimiter {
+
+    /** HipChat allows 100 API requests per 5 minutes for each token. */
+    public static final int DEFAULT_TOKEN_REQUESTS = 100;
+    public static final int TOKEN_PERIOD_SECONDS = 300;
+    /** HipChat allows 30 messages per minute for each room. */
+    public static final int DEFAULT_ROOM_REQUESTS = 30;
+    public static final int ROOM_PERIOD_SECONDS = 60;
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    static final long BASE_BACKOFF_MILLIS = 1000;
+    static final long MAX_BACKOFF_MILLIS = 60000;
+
+    private static final HipChatRateLimiter INSTANCE = new HipChatRateLimiter();
+
+    private final ConcurrentMap<String, TokenBucket> tokenBuckets = new ConcurrentHashMap<String, TokenBucket>();
+    private final ConcurrentMap<String, TokenBucket> roomBuckets = new ConcurrentHashMap<String, TokenBucket>();
+    private final Random random = new Random();
+
+    private volatile int tokenRequests = DEFAULT_TOKEN_REQUESTS;
+    private volatile int roomRequests = DEFAULT_ROOM_REQUESTS;
+    private volatile int maxRetries = DEFAULT_MAX_RETRIES;
+
+    public static HipChatRateLimiter get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Applies new limits. Buckets are only rebuilt for a limit that changed, so saving the
+     * configuration does not hand out a fresh quota.
+     */
+    public synchronized void configure(int tokenRequests, int roomRequests, int maxRetries) {
+        tokenRequests = tokenRequests > 0 ? tokenRequests : DEFAULT_TOKEN_REQUESTS;
+        roomRequests = roomRequests > 0 ? roomRequests : DEFAULT_ROOM_REQUESTS;
+        if (tokenRequests != this.tokenRequests) {
+            this.tokenRequests = tokenRequests;
+            tokenBuckets.clear();
+        }
+        if (roomRequests != this.roomRequests) {
+            this.roomRequests = roomRequests;
+            roomBuckets.clear();
+        }
+        this.maxRetries = Math.max(0, maxRetries);
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Takes the quota for a request for the given token and room, whether or not it is available yet.
+     *
+     * @return milliseconds until the request may be sent, zero if it may be sent now
+     */
+    public long reserve(String token, String room) {
+        long now = System.nanoTime();
+        long wait = Math.max(tokenBucket(token, now).reserve(now), roomBucket(token, room, now).reserve(now));
+        return toMillis(wait);
+    }
+
+    /**
+     * Takes the quota for a request for the given token and room if it may be sent now.
+     *
+     * @return zero if the quota was taken; otherwise milliseconds until it is available, none taken
+     */
+    public long tryAcquire(String token, String room) {
+        long now = System.nanoTime();
+        TokenBucket tokenBucket = tokenBucket(token, now);
+        if (tokenBucket.tryReserve(now, 0) < 0) {
+            return toMillis(tokenBucket.waitNanos(now));
+        }
+        TokenBucket roomBucket = roomBucket(token, room, now);
+        if (roomBucket.tryReserve(now, 0) < 0) {
+            tokenBucket.release();
+            return toMillis(roomBucket.waitNanos(now));
+        }
+        return 0;
+    }
+
+    /**
+     * Holds back all further requests for the token and room, e.g. for the duration of a Retry-After.
+     */
+    public void pause(String token, String room, long millis) {
+        long now = System.nanoTime();
+        long nanos = TimeUnit.MILLISECONDS.toNanos(millis);
+        tokenBucket(token, now).pause(now, nanos);
+        roomBucket(token, room, now).pause(now, nanos);
+    }
+
+    /**
+     * Exponential backoff for the given (zero based) retry, jittered to between half and all of the
+     * current ceiling so that senders held back together do not retry together.
+     */
+    public long backoffMillis(int retry) {
+        long ceiling = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(retry, 16));
+        synchronized (random) {
+            return ceiling / 2 + (long) (random.nextDouble() * ceiling / 2);
+        }
+    }
+
+    /**
+     * Parses a Retry-After header, which is either a number of seconds or an HTTP date.
+     *
+     * @return the delay in milliseconds, or -1 if the header is missing or unreadable
+     */
+    static long parseRetryAfter(String value, long now) {
+        if (value == null || value.trim().length() == 0) {
+            return -1;
+        }
+        try {
+            return Math.max(0, Long.parseLong(value.trim()) * 1000);
+        } catch (NumberFormatException e) {
+            try {
+                return Math.max(0, DateUtil.parseDate(value.trim()).getTime() - now);
+            } catch (DateParseException ignored) {
+                return -1;
+            }
+        }
+    }
+
+    private static long toMillis(long nanos) {
+        return nanos <= 0 ? 0 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(nanos));
+    }
+
+    private TokenBucket tokenBucket(String token, long now) {
+        TokenBucket bucket = tokenBuckets.get(token);
+        if (bucket == null) {
+            TokenBucket created = new TokenBucket(tokenRequests, TOKEN_PERIOD_SECONDS, TimeUnit.SECONDS, now);
+            bucket = tokenBuckets.putIfAbsent(token, created);
+            if (bucket == null) {
+                bucket = created;
+            }
+        }
+        return bucket;
+    }
+
+    private TokenBucket roomBucket(String token, String room, long now) {
+        String key = token + "|" + room;
+        TokenBucket bucket = roomBuckets.get(key);
+        if (bucket == null) {
+            TokenBucket created = new TokenBucket(roomRequests, ROOM_PERIOD_SECONDS, TimeUnit.SECONDS, now);
+            bucket = roomBuckets.putIfAbsent(key, created);
+            if (bucket == null) {
+                bucket = created;
+            }
+        }
+        return bucket;
+    }
+}
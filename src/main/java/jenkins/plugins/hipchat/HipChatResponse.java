@@ -0,0 +1,83 @@
+package jenkins.plugins.hipchat;
+
+import org.apache.commons.httpclient.HttpMethod;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+
+/**
+ * Reads just enough of a HipChat response to tell whether the message was posted, and why not.
+ * <p>
+ * HipChat answers with a few dozen bytes of JSON, e.g. {@code {"status":"sent"}} or
+ * {@code {"error":{"code":404,"type":"Not Found","message":"Room not found"}}}. Only the first
+ * {@link #MAX_BODY_BYTES} are read. A longer body cannot be from HipChat, e.g. an error page of a proxy,
+ * and the connection is closed rather than drained.
+ */
+final class HipChatResponse {
+
+    static final int MAX_BODY_BYTES = 1024;
+
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private HipChatResponse() {
+    }
+
+    /**
+     * Returns the start of the response body, or null if there is none.
+     */
+    static String read(HttpMethod method) throws IOException {
+        InputStream in = method.getResponseBodyAsStream();
+        if (in == null) {
+            return null;
+        }
+        byte[] head = new byte[MAX_BODY_BYTES];
+        int length = readHead(in, head);
+        if (length == head.length && in.read() != -1) {
+            method.abort();
+        }
+        return new String(head, 0, length, "UTF-8");
+    }
+
+    /**
+     * Reads into {@code buffer} until it is full or the stream ends.
+     *
+     * @return the number of bytes read
+     */
+    static int readHead(InputStream in, byte[] buffer) throws IOException {
+        int length = 0;
+        while (length < buffer.length) {
+            int read = in.read(buffer, length, buffer.length - length);
+            if (read == -1) {
+                break;
+            }
+            length += read;
+        }
+        return length;
+    }
+
+    /**
+     * Tells why a response not confirming the message failed, from its status and, where the status
+     * is ambiguous, the start of its body. The v1 API answers 403 both for a token without access
+     * and for an exceeded rate limit.
+     */
+    static DeliveryFailure classify(int responseCode, String body) {
+        String text = body == null ? "" : body.toLowerCase(Locale.ENGLISH);
+        switch (responseCode) {
+            case 401:
+                return DeliveryFailure.BAD_TOKEN;
+            case 403:
+                return text.contains("rate limit") ? DeliveryFailure.RATE_LIMITED : DeliveryFailure.BAD_TOKEN;
+            case 404:
+                return DeliveryFailure.ROOM_NOT_FOUND;
+            case HTTP_TOO_MANY_REQUESTS:
+                return DeliveryFailure.RATE_LIMITED;
+            case 502:
+            case 503:
+            case 504:
+                return DeliveryFailure.UNAVAILABLE;
+            default:
+                return text.contains("room not found") ? DeliveryFailure.ROOM_NOT_FOUND : DeliveryFailure.REJECTED;
+        }
+    }
+}
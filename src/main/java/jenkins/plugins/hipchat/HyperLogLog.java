@@ -0,0 +1,58 @@
+package jenkins.plugins.hipchat;
+
+/**
+ * Minimal HyperLogLog cardinality sketch over strings, used to estimate the number of distinct
+ * files in very large change sets. With 4096 registers the standard error is about 1.6%.
+ */
+final class HyperLogLog {
+
+    private static final int PRECISION = 12;
+    private static final int REGISTERS = 1 << PRECISION;
+    private static final double ALPHA = 0.7213 / (1 + 1.079 / REGISTERS);
+
+    private final byte[] registers = new byte[REGISTERS];
+
+    void add(String value) {
+        long hash = hash(value);
+        int index = (int) (hash >>> (64 - PRECISION));
+        int rank = Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1;
+        if (rank > registers[index]) {
+            registers[index] = (byte) rank;
+        }
+    }
+
+    long estimate() {
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        double estimate = ALPHA * REGISTERS * REGISTERS / sum;
+        if (estimate <= 2.5 * REGISTERS && zeros > 0) {
+            // linear counting is more accurate for small cardinalities
+            estimate = REGISTERS * Math.log((double) REGISTERS / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    /**
+     * 64-bit FNV-1a over the characters, finished with the MurmurHash3 mixer so that every bit
+     * depends on the whole input.
+     */
+    static long hash(String value) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
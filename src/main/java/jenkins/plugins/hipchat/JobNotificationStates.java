@@ -0,0 +1,263 @@
+package jenkins.plugins.hipchat;
+
+import hudson.Extension;
+import hudson.init.Terminator;
+import hudson.model.Item;
+import hudson.model.Result;
+import hudson.model.listeners.ItemListener;
+import jenkins.model.Jenkins;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Per job: the last result, and the build and time of the last completion message. Decides whether
+ * a repeated status is worth another message, for jobs that suppress repeats.
+ * <p>
+ * The states are kept in memory and written as one small binary file,
+ * {@code JENKINS_HOME/hipchat-job-states.bin}, a few seconds after they change and at shutdown.
+ * If the file is lost, the next completion of each job is simply reported.
+ */
+public final class JobNotificationStates {
+
+    private static final Logger logger = Logger.getLogger(JobNotificationStates.class.getName());
+
+    public static final String FILE_NAME = "hipchat-job-states.bin";
+    static final long SAVE_DELAY_SECONDS = 5;
+
+    private static final int MAGIC = 0x48434a53;
+    private static final int VERSION = 1;
+    private static final Result[] RESULTS = {Result.SUCCESS, Result.UNSTABLE, Result.FAILURE, Result.NOT_BUILT, Result.ABORTED};
+
+    private static JobNotificationStates instance;
+
+    private final File file;
+    private final Map<String, State> states = new HashMap<String, State>();
+    private final ScheduledExecutorService writer;
+    private boolean saveScheduled;
+
+    JobNotificationStates(File file) {
+        this.file = file;
+        this.writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "HipChat job state writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (file != null) {
+            try {
+                load();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Ignoring unreadable HipChat job states " + file, e);
+                states.clear();
+            }
+        }
+    }
+
+    public static synchronized JobNotificationStates get() {
+        if (instance == null) {
+            Jenkins jenkins = Jenkins.getInstance();
+            instance = new JobNotificationStates(jenkins != null ? new File(jenkins.getRootDir(), FILE_NAME) : null);
+        }
+        return instance;
+    }
+
+    /**
+     * Records the result of a completed build and decides whether to report it.
+     *
+     * @param wanted             whether the job's notification settings ask for a message about this result
+     * @param repeatEveryBuilds  report an unchanged status again after this many builds; 0 for never
+     * @param repeatAfterMinutes report an unchanged status again after this many minutes; 0 for never
+     * @return whether to send the message; always false if not {@code wanted}
+     */
+    public boolean shouldNotify(String job, int buildNumber, Result result, boolean wanted,
+                                int repeatEveryBuilds, int repeatAfterMinutes, long now) {
+        boolean notify;
+        synchronized (this) {
+            State state = states.get(job);
+            if (state == null) {
+                state = new State();
+                states.put(job, state);
+            }
+            boolean changed = state.lastResult != result;
+            state.lastResult = result;
+            notify = wanted && (changed || state.lastNotifiedBuild == 0
+                    || (repeatEveryBuilds > 0 && buildNumber - state.lastNotifiedBuild >= repeatEveryBuilds)
+                    || (repeatAfterMinutes > 0 && now - state.lastNotifiedAt >= TimeUnit.MINUTES.toMillis(repeatAfterMinutes)));
+            if (notify) {
+                state.lastNotifiedBuild = buildNumber;
+                state.lastNotifiedAt = now;
+            }
+        }
+        scheduleSave();
+        return notify;
+    }
+
+    public synchronized void remove(String job) {
+        if (states.remove(job) != null) {
+            scheduleSave();
+        }
+    }
+
+    public synchronized void rename(String oldJob, String newJob) {
+        State state = states.remove(oldJob);
+        if (state != null) {
+            states.put(newJob, state);
+            scheduleSave();
+        }
+    }
+
+    synchronized int size() {
+        return states.size();
+    }
+
+    private synchronized void scheduleSave() {
+        if (file == null || saveScheduled) {
+            return;
+        }
+        saveScheduled = true;
+        writer.schedule(new Runnable() {
+            public void run() {
+                try {
+                    save();
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Could not save HipChat job states to " + file, e);
+                }
+            }
+        }, SAVE_DELAY_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Writes a snapshot of all states, replacing the previous file.
+     */
+    void save() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+        try {
+            synchronized (this) {
+                saveScheduled = false;
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(states.size());
+                for (Map.Entry<String, State> entry : states.entrySet()) {
+                    State state = entry.getValue();
+                    out.writeUTF(entry.getKey());
+                    out.writeByte(indexOf(state.lastResult));
+                    out.writeInt(state.lastNotifiedBuild);
+                    out.writeLong(state.lastNotifiedAt);
+                }
+            }
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            // Windows will not rename over an existing file
+            if (!file.delete() || !tmp.renameTo(file)) {
+                throw new IOException("Could not replace " + file);
+            }
+        }
+    }
+
+    private void load() throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a HipChat job state file");
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String job = in.readUTF();
+                State state = new State();
+                int result = in.readByte();
+                state.lastResult = result >= 0 && result < RESULTS.length ? RESULTS[result] : null;
+                state.lastNotifiedBuild = in.readInt();
+                state.lastNotifiedAt = in.readLong();
+                states.put(job, state);
+            }
+        } catch (EOFException e) {
+            throw new IOException("Truncated HipChat job state file");
+        } finally {
+            in.close();
+        }
+    }
+
+    private static int indexOf(Result result) {
+        for (int i = 0; i < RESULTS.length; i++) {
+            if (RESULTS[i] == result) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static final class State {
+        Result lastResult;
+        int lastNotifiedBuild;
+        long lastNotifiedAt;
+    }
+
+    /**
+     * Writes the states on the writer thread, so it cannot overlap a scheduled save, and waits for it.
+     */
+    void saveNow() throws InterruptedException {
+        try {
+            writer.submit(new Callable<Void>() {
+                public Void call() throws IOException {
+                    save();
+                    return null;
+                }
+            }).get();
+        } catch (ExecutionException e) {
+            logger.log(Level.WARNING, "Could not save HipChat job states to " + file, e.getCause());
+        }
+    }
+
+    @Terminator
+    public static void saveOnShutdown() throws InterruptedException {
+        JobNotificationStates states;
+        synchronized (JobNotificationStates.class) {
+            states = instance;
+        }
+        if (states != null && states.file != null) {
+            states.saveNow();
+        }
+    }
+
+    @Extension
+    public static final class ProjectListener extends ItemListener {
+        @Override
+        public void onRenamed(Item item, String oldName, String newName) {
+            String parent = item.getParent().getFullName();
+            get().rename(parent.length() == 0 ? oldName : parent + "/" + oldName, item.getFullName());
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            get().remove(item.getFullName());
+        }
+    }
+}
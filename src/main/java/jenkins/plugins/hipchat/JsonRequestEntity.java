@@ -0,0 +1,168 @@
+package jenkins.plugins.hipchat;
+
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * JSON request body encoded straight to UTF-8 into a per-thread buffer that is reused from one
+ * request to the next, so no intermediate strings are built for the payload.
+ * <p>
+ * Obtain one with {@link #begin()}, write a single flat object, and hand it to the request before
+ * the same thread begins another.
+ */
+final class JsonRequestEntity implements RequestEntity {
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int RETAINED_CAPACITY = 64 * 1024;
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private static final ThreadLocal<JsonRequestEntity> BUFFERS = new ThreadLocal<JsonRequestEntity>() {
+        @Override
+        protected JsonRequestEntity initialValue() {
+            return new JsonRequestEntity();
+        }
+    };
+
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    private int count;
+    private boolean first;
+
+    private JsonRequestEntity() {
+    }
+
+    /**
+     * Starts a new object in this thread's buffer.
+     */
+    static JsonRequestEntity begin() {
+        JsonRequestEntity entity = BUFFERS.get();
+        if (entity.buffer.length > RETAINED_CAPACITY) {
+            entity.buffer = new byte[INITIAL_CAPACITY];
+        }
+        entity.count = 0;
+        entity.first = true;
+        entity.write('{');
+        return entity;
+    }
+
+    JsonRequestEntity field(String name, String value) {
+        name(name);
+        if (value == null) {
+            writeAscii("null");
+        } else {
+            string(value);
+        }
+        return this;
+    }
+
+    JsonRequestEntity field(String name, boolean value) {
+        name(name);
+        writeAscii(value ? "true" : "false");
+        return this;
+    }
+
+    JsonRequestEntity end() {
+        write('}');
+        return this;
+    }
+
+    private void name(String name) {
+        if (!first) {
+            write(',');
+        }
+        first = false;
+        string(name);
+        write(':');
+    }
+
+    private void string(String value) {
+        write('"');
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                write('\\');
+                write(c);
+            } else if (c < 0x20) {
+                switch (c) {
+                    case '\n':
+                        write('\\');
+                        write('n');
+                        break;
+                    case '\r':
+                        write('\\');
+                        write('r');
+                        break;
+                    case '\t':
+                        write('\\');
+                        write('t');
+                        break;
+                    default:
+                        writeAscii("\\u00");
+                        write(HEX[c >> 4]);
+                        write(HEX[c & 0xF]);
+                }
+            } else if (c < 0x80) {
+                write(c);
+            } else if (c < 0x800) {
+                write(0xC0 | (c >> 6));
+                write(0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                write(0xF0 | (codePoint >> 18));
+                write(0x80 | ((codePoint >> 12) & 0x3F));
+                write(0x80 | ((codePoint >> 6) & 0x3F));
+                write(0x80 | (codePoint & 0x3F));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                write('?');
+            } else {
+                write(0xE0 | (c >> 12));
+                write(0x80 | ((c >> 6) & 0x3F));
+                write(0x80 | (c & 0x3F));
+            }
+        }
+        write('"');
+    }
+
+    private void writeAscii(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            write(text.charAt(i));
+        }
+    }
+
+    private void write(int b) {
+        if (count == buffer.length) {
+            byte[] grown = new byte[buffer.length * 2];
+            System.arraycopy(buffer, 0, grown, 0, count);
+            buffer = grown;
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    public void writeRequest(OutputStream out) throws IOException {
+        out.write(buffer, 0, count);
+    }
+
+    public long getContentLength() {
+        return count;
+    }
+
+    public String getContentType() {
+        return "application/json; charset=UTF-8";
+    }
+
+    @Override
+    public String toString() {
+        try {
+            return new String(buffer, 0, count, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
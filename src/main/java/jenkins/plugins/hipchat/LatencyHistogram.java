@@ -0,0 +1,74 @@
+package jenkins.plugins.hipchat;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with power-of-two millisecond buckets. Percentiles are reported as
+ * the upper bound of the bucket they fall in, i.e. to within a factor of two.
+ */
+public final class LatencyHistogram {
+
+    private static final int BUCKETS = 32;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long millis) {
+        millis = Math.max(0, millis);
+        buckets.incrementAndGet(bucket(millis));
+        count.incrementAndGet();
+        total.addAndGet(millis);
+        long current;
+        while (millis > (current = max.get()) && !max.compareAndSet(current, millis)) {
+            // retry
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : total.get() / n;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     */
+    public long getPercentile(double percentile) {
+        long n = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = buckets.get(i);
+            n += snapshot[i];
+        }
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100 * n);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    private static int bucket(long millis) {
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(millis));
+    }
+
+    private static long upperBound(int bucket) {
+        return bucket == 0 ? 0 : (1L << bucket) - 1;
+    }
+}
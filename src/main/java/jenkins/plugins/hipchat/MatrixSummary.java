@@ -0,0 +1,80 @@
+package jenkins.plugins.hipchat;
+
+import hudson.matrix.MatrixBuild;
+import hudson.matrix.MatrixRun;
+import hudson.model.Result;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One line summing up the configurations of a matrix build, e.g.
+ * {@code "38 of 40 configurations passed. FAILURE: jdk=7,os=win, jdk=8,os=win"}.
+ * <p>
+ * Configurations that did not pass are named, worst result first; passing ones are only counted.
+ */
+final class MatrixSummary {
+
+    private static final Result[] REPORTED = {Result.FAILURE, Result.UNSTABLE, Result.ABORTED, Result.NOT_BUILT};
+
+    private final List<String> names = new ArrayList<String>();
+    private final List<Result> results = new ArrayList<Result>();
+
+    static MatrixSummary of(MatrixBuild build) {
+        MatrixSummary summary = new MatrixSummary();
+        for (MatrixRun run : build.getRuns()) {
+            summary.add(run.getParent().getCombination().toString(), run.getResult());
+        }
+        return summary;
+    }
+
+    MatrixSummary add(String configuration, Result result) {
+        names.add(configuration);
+        results.add(result);
+        return this;
+    }
+
+    boolean isEmpty() {
+        return names.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        int passed = 0;
+        for (Result result : results) {
+            if (result == Result.SUCCESS) {
+                passed++;
+            }
+        }
+        StringBuilder text = new StringBuilder();
+        text.append(passed).append(" of ").append(results.size()).append(" configurations passed.");
+        for (Result reported : REPORTED) {
+            String separator = " " + reported + ": ";
+            for (int i = 0; i < results.size(); i++) {
+                if (results.get(i) == reported) {
+                    text.append(separator).append(names.get(i));
+                    separator = ", ";
+                }
+            }
+        }
+        // still running, or a result we do not know about
+        String separator = " Other: ";
+        for (int i = 0; i < results.size(); i++) {
+            Result result = results.get(i);
+            if (result != Result.SUCCESS && !isReported(result)) {
+                text.append(separator).append(names.get(i));
+                separator = ", ";
+            }
+        }
+        return text.toString();
+    }
+
+    private static boolean isReported(Result result) {
+        for (Result reported : REPORTED) {
+            if (reported == result) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,9 @@
+package jenkins.plugins.hipchat;
+
+/**
+ * Supplies the values that {@link MessageTemplate} placeholders are replaced with.
+ */
+public interface MessageFields {
+
+    String get(MessageTemplate.Field field);
+}
@@ -0,0 +1,159 @@
+package jenkins.plugins.hipchat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A notification message layout such as {@code "${project} - ${build} ${status} after ${duration}"}.
+ * <p>
+ * Templates are parsed once into literal and placeholder segments and cached by their text until
+ * the configuration changes. Rendering appends the segments to a per-thread builder, so a
+ * notification costs little more than the field values themselves. Unknown placeholders are
+ * left in the message as they were written.
+ */
+public final class MessageTemplate {
+
+    public enum Field {
+        PROJECT("project"),
+        BUILD("build"),
+        STATUS("status"),
+        DURATION("duration"),
+        CAUSE("cause"),
+        AUTHORS("authors"),
+        FILES("files"),
+        URL("url"),
+        AXES("axes");
+
+        private final String placeholder;
+
+        Field(String placeholder) {
+            this.placeholder = placeholder;
+        }
+
+        public String getPlaceholder() {
+            return placeholder;
+        }
+
+        static Field forPlaceholder(String name) {
+            for (Field field : values()) {
+                if (field.placeholder.equals(name)) {
+                    return field;
+                }
+            }
+            return null;
+        }
+    }
+
+    public static final String DEFAULT_STARTED = "${project} - ${build} ${cause} (<a href='${url}'>Open</a>)";
+    public static final String DEFAULT_COMPLETED = "${project} - ${build} ${status} after ${duration} (<a href='${url}'>Open</a>)";
+
+    private static final int MAX_RETAINED_CAPACITY = 16 * 1024;
+
+    private static final ConcurrentMap<String, MessageTemplate> compiled = new ConcurrentHashMap<String, MessageTemplate>();
+
+    private static final ThreadLocal<StringBuilder> buffer = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(256);
+        }
+    };
+
+    private final String text;
+    // literal segments are Strings, placeholders are Fields
+    private final Object[] segments;
+
+    private MessageTemplate(String text, Object[] segments) {
+        this.text = text;
+        this.segments = segments;
+    }
+
+    /**
+     * Returns the compiled form of the template text, parsing it only the first time it is seen.
+     */
+    public static MessageTemplate compile(String text) {
+        MessageTemplate template = compiled.get(text);
+        if (template == null) {
+            template = parse(text);
+            compiled.putIfAbsent(text, template);
+        }
+        return template;
+    }
+
+    /**
+     * Forgets compiled templates; called when global or job configuration is saved.
+     */
+    public static void clearCache() {
+        compiled.clear();
+    }
+
+    static MessageTemplate parse(String text) {
+        List<Object> segments = new ArrayList<Object>();
+        StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while (i < text.length()) {
+            int start = text.indexOf("${", i);
+            int end = start < 0 ? -1 : text.indexOf('}', start + 2);
+            if (end < 0) {
+                literal.append(text, i, text.length());
+                break;
+            }
+            literal.append(text, i, start);
+            Field field = Field.forPlaceholder(text.substring(start + 2, end).trim());
+            if (field == null) {
+                literal.append(text, start, end + 1);
+            } else {
+                if (literal.length() > 0) {
+                    segments.add(literal.toString());
+                    literal.setLength(0);
+                }
+                segments.add(field);
+            }
+            i = end + 1;
+        }
+        if (literal.length() > 0) {
+            segments.add(literal.toString());
+        }
+        return new MessageTemplate(text, segments.toArray());
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public boolean uses(Field field) {
+        for (Object segment : segments) {
+            if (segment == field) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public String render(MessageFields fields) {
+        StringBuilder out = buffer.get();
+        out.setLength(0);
+        render(fields, out);
+        String message = out.toString();
+        if (out.capacity() > MAX_RETAINED_CAPACITY) {
+            buffer.remove();
+        }
+        return message;
+    }
+
+    public void render(MessageFields fields, StringBuilder out) {
+        for (Object segment : segments) {
+            if (segment instanceof Field) {
+                out.append(fields.get((Field) segment));
+            } else {
+                out.append((String) segment);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
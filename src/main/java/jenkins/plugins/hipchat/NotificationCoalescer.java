@@ -0,0 +1,226 @@
+package jenkins.plugins.hipchat;
+
+import hudson.model.Result;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Collects completion notifications per room and sends them as a single digest message.
+ * <p>
+ * A digest goes out when the coalescing window that its first notification opened closes, or
+ * earlier once it holds the configured number of notifications. With a window of zero every
+ * notification is passed straight through.
+ */
+public class NotificationCoalescer {
+
+    private static final Logger logger = Logger.getLogger(NotificationCoalescer.class.getName());
+
+    public static final int DEFAULT_MAX_MESSAGES = 10;
+
+    private static final NotificationCoalescer INSTANCE = new NotificationCoalescer();
+
+    private final Map<String, Digest> pending = new HashMap<String, Digest>();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "HipChat digest timer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private volatile int windowSeconds;
+    private volatile int maxMessages = DEFAULT_MAX_MESSAGES;
+    private volatile boolean failuresImmediately = true;
+
+    public static NotificationCoalescer get() {
+        return INSTANCE;
+    }
+
+    public void configure(int windowSeconds, int maxMessages, boolean failuresImmediately) {
+        this.windowSeconds = Math.max(0, windowSeconds);
+        this.maxMessages = maxMessages > 0 ? maxMessages : DEFAULT_MAX_MESSAGES;
+        this.failuresImmediately = failuresImmediately;
+        if (this.windowSeconds == 0) {
+            flushAll();
+        }
+    }
+
+    public boolean isEnabled() {
+        return windowSeconds > 0;
+    }
+
+    /**
+     * Queues a completion notification for the target's rooms, or publishes it right away when
+     * coalescing is off or the build failed and failures skip the window.
+     *
+     * @param messageKey  identifies the notification, see {@link ActiveNotifier#getMessageKey}
+     * @param sequenceKey orders the notification, or the digest holding it, after the build's earlier ones
+     * @param label       the build's name in a digest; null when coalescing is off
+     * @param url         the build's link in a digest; null when coalescing is off
+     */
+    void add(DeliveryTarget target, String messageKey, String sequenceKey, Result result, String message,
+             String color, String label, String url) {
+        Entry entry = new Entry(messageKey, sequenceKey, result, message, color, label, url);
+        if (!isEnabled() || (failuresImmediately && result == Result.FAILURE)) {
+            entry.publish(target);
+            return;
+        }
+        String key = target.getDeliveryKey();
+        Digest ready = null;
+        synchronized (this) {
+            Digest digest = pending.get(key);
+            if (digest == null) {
+                digest = new Digest(target);
+                pending.put(key, digest);
+                scheduleFlush(key, digest);
+            }
+            digest.add(entry);
+            if (digest.size() >= maxMessages) {
+                pending.remove(key);
+                ready = digest;
+            }
+        }
+        if (ready != null) {
+            ready.send();
+        }
+    }
+
+    private void scheduleFlush(final String key, final Digest digest) {
+        timer.schedule(new Runnable() {
+            public void run() {
+                synchronized (NotificationCoalescer.this) {
+                    if (pending.get(key) != digest) {
+                        return;
+                    }
+                    pending.remove(key);
+                }
+                digest.send();
+            }
+        }, windowSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Sends every pending digest now, e.g. when coalescing is switched off or Jenkins shuts down.
+     */
+    public void flushAll() {
+        List<Digest> ready;
+        synchronized (this) {
+            ready = new ArrayList<Digest>(pending.values());
+            pending.clear();
+        }
+        for (Digest digest : ready) {
+            digest.send();
+        }
+    }
+
+    static final class Entry {
+        final String messageKey;
+        final String sequenceKey;
+        final Result result;
+        final String message;
+        final String color;
+        final String label;
+        final String url;
+
+        Entry(String messageKey, String sequenceKey, Result result, String message, String color,
+              String label, String url) {
+            this.messageKey = messageKey;
+            this.sequenceKey = sequenceKey;
+            this.result = result;
+            this.message = message;
+            this.color = color;
+            this.label = label;
+            this.url = url;
+        }
+
+        void publish(DeliveryTarget target) {
+            new AsyncHipChatService(target.newService(messageKey), sequenceKey).publish(message, color);
+        }
+    }
+
+    private static final class Digest {
+        private final DeliveryTarget target;
+        private final List<Entry> entries = new ArrayList<Entry>();
+
+        Digest(DeliveryTarget target) {
+            this.target = target;
+        }
+
+        void add(Entry entry) {
+            entries.add(entry);
+        }
+
+        int size() {
+            return entries.size();
+        }
+
+        void send() {
+            if (entries.size() == 1) {
+                entries.get(0).publish(target);
+                return;
+            }
+            logger.fine("Sending digest of " + entries.size() + " HipChat notifications");
+            // audited once for every build it covers, and posted after each one's earlier messages
+            List<String> messageKeys = new ArrayList<String>(entries.size());
+            List<String> sequenceKeys = new ArrayList<String>(entries.size());
+            for (Entry entry : entries) {
+                messageKeys.add(entry.messageKey);
+                sequenceKeys.add(entry.sequenceKey);
+            }
+            new AsyncHipChatService(target.newService(DeliveryAudit.joinKeys(messageKeys)), sequenceKeys)
+                    .publish(getMessage(entries), getColor(entries));
+        }
+    }
+
+    static String getMessage(List<Entry> entries) {
+        Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+        for (Entry entry : entries) {
+            String name = String.valueOf(entry.result).toLowerCase();
+            Integer count = counts.get(name);
+            counts.put(name, count == null ? 1 : count + 1);
+        }
+        StringBuilder message = new StringBuilder();
+        message.append(entries.size()).append(" builds: ");
+        boolean first = true;
+        for (Map.Entry<String, Integer> count : counts.entrySet()) {
+            if (!first) {
+                message.append(", ");
+            }
+            message.append(count.getValue()).append(' ').append(count.getKey());
+            first = false;
+        }
+        for (Entry entry : entries) {
+            message.append("<br/>");
+            if (entry.url != null) {
+                message.append("<a href='").append(entry.url).append("'>").append(entry.label).append("</a> ")
+                        .append(String.valueOf(entry.result).toLowerCase());
+            } else {
+                // added just as coalescing was switched on
+                message.append(entry.message);
+            }
+        }
+        return message.toString();
+    }
+
+    static String getColor(List<Entry> entries) {
+        String color = "green";
+        for (Entry entry : entries) {
+            if ("red".equals(entry.color)) {
+                return "red";
+            }
+            if (!"green".equals(entry.color)) {
+                color = entry.color;
+            }
+        }
+        return color;
+    }
+}
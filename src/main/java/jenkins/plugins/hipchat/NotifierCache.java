@@ -0,0 +1,139 @@
+package jenkins.plugins.hipchat;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.AbstractProject;
+import hudson.model.Item;
+import hudson.model.Saveable;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SaveableListener;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the {@link FineGrainedNotifier} for each project so build events do not scan the
+ * publisher list every time.
+ * <p>
+ * Projects without a {@link HipChatNotifier} map to {@link DisabledNotifier#INSTANCE}. Entries are
+ * dropped when the project configuration is saved or replaced through {@code config.xml}, or the
+ * project is renamed or deleted, and all of them when the global configuration is saved or Jenkins
+ * reloads its configuration from disk. Each {@link ActiveNotifier} keeps the settings it resolved on
+ * first use, so dropping it is what makes a new configuration take effect.
+ */
+public final class NotifierCache {
+
+    private static final NotifierCache INSTANCE = new NotifierCache();
+
+    private final ConcurrentMap<String, FineGrainedNotifier> notifiers = new ConcurrentHashMap<String, FineGrainedNotifier>();
+    /**
+     * Bumped by every invalidation, so a lookup that raced with one does not leave behind a notifier
+     * made from the configuration that was just dropped.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    public static NotifierCache get() {
+        return INSTANCE;
+    }
+
+    @SuppressWarnings("rawtypes")
+    public FineGrainedNotifier getNotifier(AbstractProject project) {
+        FineGrainedNotifier notifier = notifiers.get(project.getFullName());
+        return notifier != null ? notifier : getNotifier(project.getFullName(), project.getPublishersList());
+    }
+
+    FineGrainedNotifier getNotifier(String fullName, Iterable<?> publishers) {
+        FineGrainedNotifier notifier = notifiers.get(fullName);
+        if (notifier != null) {
+            return notifier;
+        }
+        long seen = generation.get();
+        notifier = lookup(publishers);
+        FineGrainedNotifier existing = notifiers.putIfAbsent(fullName, notifier);
+        if (existing != null) {
+            return existing;
+        }
+        if (generation.get() != seen) {
+            // still good for this event, but the next one looks again
+            notifiers.remove(fullName, notifier);
+        }
+        return notifier;
+    }
+
+    static FineGrainedNotifier lookup(Iterable<?> publishers) {
+        for (Object candidate : publishers) {
+            if (candidate instanceof HipChatNotifier) {
+                return new ActiveNotifier((HipChatNotifier) candidate);
+            }
+        }
+        return DisabledNotifier.INSTANCE;
+    }
+
+    /**
+     * Forgets the notifier of the project and of the items within it, e.g. the configurations of a
+     * matrix project, which share its settings.
+     */
+    public void invalidate(String fullName) {
+        generation.incrementAndGet();
+        notifiers.remove(fullName);
+        String prefix = fullName + "/";
+        for (String name : notifiers.keySet()) {
+            if (name.startsWith(prefix)) {
+                notifiers.remove(name);
+            }
+        }
+    }
+
+    public void clear() {
+        generation.incrementAndGet();
+        notifiers.clear();
+    }
+
+    int size() {
+        return notifiers.size();
+    }
+
+    @Extension
+    public static final class ConfigurationListener extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof AbstractProject) {
+                get().invalidate(((AbstractProject<?, ?>) o).getFullName());
+                MessageTemplate.clearCache();
+            }
+        }
+    }
+
+    @Extension
+    public static final class ProjectListener extends ItemListener {
+        @Override
+        public void onRenamed(Item item, String oldName, String newName) {
+            // the old full name is not handed to us, and renames are rare enough to start over
+            get().clear();
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            get().invalidate(item.getFullName());
+        }
+
+        /**
+         * Called once all items are loaded, which includes Reload Configuration from Disk.
+         */
+        @Override
+        public void onLoaded() {
+            get().clear();
+            MessageTemplate.clearCache();
+        }
+
+        /**
+         * Called when {@code config.xml} is posted through the REST API or the CLI, which replaces the
+         * configuration without a save. Not overridden, as it only exists from Jenkins 1.460 on.
+         */
+        public void onUpdated(Item item) {
+            get().invalidate(item.getFullName());
+            MessageTemplate.clearCache();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package jenkins.plugins.hipchat;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * One message for one room, as stored in the {@link OutboxJournal}.
+ */
+final class OutboxEntry {
+
+    private static final String UTF8 = "UTF-8";
+
+    final String key;
+    final String token;
+    final String room;
+    final String from;
+    final String message;
+    final String color;
+    final long createdAt;
+
+    OutboxEntry(String key, String token, String room, String from, String message, String color, long createdAt) {
+        this.key = key;
+        this.token = token;
+        this.room = room;
+        this.from = from;
+        this.message = message;
+        this.color = color;
+        this.createdAt = createdAt;
+    }
+
+    void writeTo(DataOutput out) throws IOException {
+        writeString(out, key);
+        writeString(out, token);
+        writeString(out, room);
+        writeString(out, from);
+        writeString(out, message);
+        writeString(out, color);
+        out.writeLong(createdAt);
+    }
+
+    static OutboxEntry readFrom(DataInput in) throws IOException {
+        return new OutboxEntry(readString(in), readString(in), readString(in), readString(in), readString(in),
+                readString(in), in.readLong());
+    }
+
+    // writeUTF is limited to 64K, which a long message or digest may exceed
+    private static void writeString(DataOutput out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+}
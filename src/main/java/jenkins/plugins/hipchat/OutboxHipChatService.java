@@ -0,0 +1,57 @@
+package jenkins.plugins.hipchat;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes messages to the {@link HipChatOutbox}, one entry per room, instead of posting them.
+ * <p>
+ * The message key, e.g. {@code "folder/job#12:completed:1380000000000"}, makes up the deduplication key of each
+ * entry together with the room. If the outbox cannot be written the message is sent directly.
+ */
+public class OutboxHipChatService implements HipChatService {
+
+    private static final Logger logger = Logger.getLogger(OutboxHipChatService.class.getName());
+
+    private final String token;
+    private final String[] roomIds;
+    private final String from;
+    private final String messageKey;
+
+    public OutboxHipChatService(String token, String roomId, String from, String messageKey) {
+        this(token, roomId.split(","), from, messageKey);
+    }
+
+    OutboxHipChatService(String token, String[] roomIds, String from, String messageKey) {
+        this.token = token;
+        this.roomIds = roomIds;
+        this.from = from;
+        this.messageKey = messageKey != null ? messageKey : UUID.randomUUID().toString();
+    }
+
+    public void publish(String message) {
+        publish(message, "yellow");
+    }
+
+    public void publish(final String message, final String color) {
+        long now = System.currentTimeMillis();
+        HipChatMetrics.get().queued();
+        for (String roomId : roomIds) {
+            OutboxEntry entry = new OutboxEntry(messageKey + "@" + roomId, token, roomId, from, message, color, now);
+            try {
+                HipChatOutbox.get().enqueue(entry);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not write HipChat outbox, sending directly", e);
+                // not through AsyncHipChatService, as the notification was already counted as queued
+                final HipChatService direct = HipChatApi.get().newService(token, roomId, from).forMessage(messageKey);
+                HipChatDispatcher.get().execute(new Runnable() {
+                    public void run() {
+                        direct.publish(message, color);
+                    }
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,480 @@
+package jenkins.plugins.hipchat;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, segmented on-disk log of undelivered {@link OutboxEntry}s.
+ * <p>
+ * Records are framed as {@code [length][crc32][payload]} so that a record torn by a crash is
+ * detected and cut off when the journal is reopened. Appends are not forced to disk one by one;
+ * {@link #sync()} forces everything written since the last call, together with the read
+ * checkpoint, and is meant to be called in batches. Segments are deleted once every entry in them
+ * has been acknowledged.
+ * <p>
+ * Keys of recently acknowledged entries are remembered in a small side log, so entries replayed
+ * after a crash, or queued twice, are not delivered again. That also covers entries acknowledged
+ * out of order, after {@link #peek(Set)} looked past older ones: the checkpoint only moves past
+ * entries that have all been acknowledged, so those are replayed after a restart, and skipped.
+ */
+final class OutboxJournal implements OutboxQueue {
+
+    private static final Logger logger = Logger.getLogger(OutboxJournal.class.getName());
+
+    static final long DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+    static final int DELIVERED_KEYS = 10000;
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String CHECKPOINT = "checkpoint";
+    private static final String DELIVERED = "delivered.log";
+    private static final int HEADER_SIZE = 12;
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+    private final File dir;
+    private final long segmentSize;
+
+    private RandomAccessFile writer;
+    private long writeSegment;
+    private int unsynced;
+
+    private RandomAccessFile reader;
+    private long readSegment;
+    private long readOffset;
+    private long nextOffset = -1;
+    private boolean checkpointDirty;
+
+    // where the entry last returned by peek is
+    private long peekSegment = -1;
+    private long peekOffset;
+    // offsets, by segment, of entries acknowledged ahead of the read position
+    private final Map<Long, Set<Long>> acked = new HashMap<Long, Set<Long>>();
+    // where the last look past skipped rooms stopped, and which rooms it skipped
+    private long scanSegment = -1;
+    private long scanOffset;
+    private Set<String> scanSkipped = Collections.emptySet();
+
+    private final Map<String, Boolean> delivered = new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > DELIVERED_KEYS;
+        }
+    };
+    private Writer deliveredLog;
+    private int deliveredLogLines;
+
+    OutboxJournal(File dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_SIZE);
+    }
+
+    OutboxJournal(File dir, long segmentSize) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        List<Long> segments = listSegments();
+        loadCheckpoint();
+        if (!segments.isEmpty() && readSegment < segments.get(0)) {
+            readSegment = segments.get(0);
+            readOffset = 0;
+        }
+        for (Long segment : segments) {
+            if (segment < readSegment) {
+                delete(segment);
+            }
+        }
+        writeSegment = segments.isEmpty() ? readSegment : Math.max(readSegment, segments.get(segments.size() - 1));
+        writer = new RandomAccessFile(segmentFile(writeSegment), "rw");
+        truncateTornTail(writer);
+        loadDelivered();
+    }
+
+    public synchronized void append(OutboxEntry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeLong(0);
+        entry.writeTo(out);
+        out.flush();
+        byte[] record = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(record, HEADER_SIZE, record.length - HEADER_SIZE);
+        ByteBuffer header = ByteBuffer.wrap(record);
+        header.putInt(0, record.length - HEADER_SIZE);
+        header.putLong(4, crc.getValue());
+
+        if (writer.length() > 0 && writer.length() + record.length > segmentSize) {
+            roll();
+        }
+        writer.seek(writer.length());
+        writer.write(record);
+        unsynced++;
+    }
+
+    /**
+     * Number of appends not yet forced to disk.
+     */
+    public synchronized int getUnsynced() {
+        return unsynced;
+    }
+
+    /**
+     * Forces appended entries and the read checkpoint to disk.
+     */
+    public synchronized void sync() throws IOException {
+        if (unsynced > 0) {
+            writer.getChannel().force(false);
+            unsynced = 0;
+        }
+        if (checkpointDirty) {
+            writeCheckpoint();
+            checkpointDirty = false;
+        }
+    }
+
+    /**
+     * Returns the oldest unacknowledged entry without removing it, or null if there is none.
+     * Segments that have been read to the end are deleted on the way.
+     */
+    public synchronized OutboxEntry peek() throws IOException {
+        while (true) {
+            if (reader == null) {
+                File file = segmentFile(readSegment);
+                if (!file.exists()) {
+                    if (readSegment >= writeSegment) {
+                        return null;
+                    }
+                    readSegment++;
+                    readOffset = 0;
+                    continue;
+                }
+                reader = new RandomAccessFile(file, "r");
+            }
+            OutboxEntry entry = readAt(reader, readOffset);
+            if (entry != null) {
+                if (unmarkAcked(readSegment, readOffset)) {
+                    readOffset = nextOffset;
+                    checkpointDirty = true;
+                    continue;
+                }
+                peekSegment = readSegment;
+                peekOffset = readOffset;
+                return entry;
+            }
+            if (readSegment >= writeSegment) {
+                return null;
+            }
+            if (readOffset < reader.length()) {
+                logger.warning("Skipping unreadable tail of HipChat outbox segment " + segmentFile(readSegment));
+            }
+            reader.close();
+            reader = null;
+            delete(readSegment);
+            acked.remove(readSegment);
+            readSegment++;
+            readOffset = 0;
+            checkpointDirty = true;
+        }
+    }
+
+    /**
+     * Returns the oldest unacknowledged entry for a room not in the given set. Looking past the
+     * skipped rooms' entries resumes where it last stopped, unless a room skipped then is not
+     * skipped any more, so their entries are not read again for every entry delivered meanwhile.
+     */
+    public synchronized OutboxEntry peek(Set<String> skippedRooms) throws IOException {
+        OutboxEntry entry = peek();
+        if (entry == null || !skippedRooms.contains(entry.room)) {
+            return entry;
+        }
+        long segment = readSegment;
+        long offset = nextOffset;
+        if (skippedRooms.containsAll(scanSkipped)
+                && (scanSegment > segment || scanSegment == segment && scanOffset > offset)) {
+            segment = scanSegment;
+            offset = scanOffset;
+        }
+        scanSkipped = new HashSet<String>(skippedRooms);
+        RandomAccessFile file = null;
+        try {
+            while (true) {
+                if (file == null) {
+                    File next = segmentFile(segment);
+                    if (!next.exists()) {
+                        if (segment >= writeSegment) {
+                            break;
+                        }
+                        segment++;
+                        offset = 0;
+                        continue;
+                    }
+                    file = new RandomAccessFile(next, "r");
+                }
+                entry = readAt(file, offset);
+                if (entry == null) {
+                    if (segment >= writeSegment) {
+                        break;
+                    }
+                    file.close();
+                    file = null;
+                    segment++;
+                    offset = 0;
+                    continue;
+                }
+                if (!isAcked(segment, offset) && !skippedRooms.contains(entry.room)) {
+                    scanSegment = peekSegment = segment;
+                    scanOffset = peekOffset = offset;
+                    return entry;
+                }
+                offset = nextOffset;
+            }
+        } finally {
+            if (file != null) {
+                file.close();
+            }
+        }
+        scanSegment = segment;
+        scanOffset = offset;
+        nextOffset = -1;
+        return null;
+    }
+
+    /**
+     * Removes the entry last returned by {@link #peek()} or {@link #peek(Set)} and remembers its key
+     * as delivered.
+     */
+    public synchronized void ack(OutboxEntry entry) throws IOException {
+        if (nextOffset < 0) {
+            throw new IllegalStateException("ack without peek");
+        }
+        if (peekSegment == readSegment && peekOffset == readOffset) {
+            readOffset = nextOffset;
+            checkpointDirty = true;
+        } else {
+            Set<Long> offsets = acked.get(peekSegment);
+            if (offsets == null) {
+                offsets = new HashSet<Long>();
+                acked.put(peekSegment, offsets);
+            }
+            offsets.add(peekOffset);
+        }
+        nextOffset = -1;
+        if (entry.key != null && delivered.put(entry.key, Boolean.TRUE) == null) {
+            // flushed, not forced: enough to survive a Jenkins crash, which is what replays entries
+            deliveredLog.write(entry.key);
+            deliveredLog.write('\n');
+            deliveredLog.flush();
+            if (++deliveredLogLines > 2 * DELIVERED_KEYS) {
+                rewriteDelivered();
+            }
+        }
+    }
+
+    public synchronized boolean isDelivered(String key) {
+        return key != null && delivered.containsKey(key);
+    }
+
+    /**
+     * Bytes of journal still waiting for delivery.
+     */
+    public synchronized long getPendingBytes() {
+        long pending = -readOffset;
+        for (long segment = readSegment; segment <= writeSegment; segment++) {
+            pending += segmentFile(segment).length();
+        }
+        return Math.max(0, pending);
+    }
+
+    public synchronized void close() throws IOException {
+        sync();
+        writer.close();
+        if (reader != null) {
+            reader.close();
+            reader = null;
+        }
+        deliveredLog.close();
+    }
+
+    private void roll() throws IOException {
+        writer.getChannel().force(false);
+        unsynced = 0;
+        writer.close();
+        writeSegment++;
+        writer = new RandomAccessFile(segmentFile(writeSegment), "rw");
+    }
+
+    private OutboxEntry readAt(RandomAccessFile file, long offset) throws IOException {
+        long length = file.length();
+        if (offset + HEADER_SIZE > length) {
+            return null;
+        }
+        file.seek(offset);
+        int size = file.readInt();
+        long checksum = file.readLong();
+        if (size < 0 || size > MAX_RECORD_SIZE || offset + HEADER_SIZE + size > length) {
+            return null;
+        }
+        byte[] payload = new byte[size];
+        file.readFully(payload);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        if (crc.getValue() != checksum) {
+            return null;
+        }
+        nextOffset = offset + HEADER_SIZE + size;
+        return OutboxEntry.readFrom(new DataInputStream(new ByteArrayInputStream(payload)));
+    }
+
+    private boolean isAcked(long segment, long offset) {
+        Set<Long> offsets = acked.get(segment);
+        return offsets != null && offsets.contains(offset);
+    }
+
+    private boolean unmarkAcked(long segment, long offset) {
+        Set<Long> offsets = acked.get(segment);
+        return offsets != null && offsets.remove(offset);
+    }
+
+    private void truncateTornTail(RandomAccessFile file) throws IOException {
+        long offset = 0;
+        while (readAt(file, offset) != null) {
+            offset = nextOffset;
+        }
+        nextOffset = -1;
+        if (offset < file.length()) {
+            logger.warning("Truncating torn record at the end of HipChat outbox segment " + segmentFile(writeSegment));
+            file.setLength(offset);
+        }
+    }
+
+    private List<Long> listSegments() {
+        String[] names = dir.list(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        List<Long> segments = new ArrayList<Long>();
+        if (names != null) {
+            for (String name : names) {
+                try {
+                    segments.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException ignored) {
+                    // not one of ours
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private File segmentFile(long segment) {
+        return new File(dir, String.format("%016d%s", segment, SEGMENT_SUFFIX));
+    }
+
+    private void delete(long segment) {
+        File file = segmentFile(segment);
+        if (file.exists() && !file.delete()) {
+            logger.warning("Could not delete delivered HipChat outbox segment " + file);
+        }
+    }
+
+    private void loadCheckpoint() throws IOException {
+        File file = new File(dir, CHECKPOINT);
+        if (!file.exists()) {
+            return;
+        }
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String[] parts = String.valueOf(in.readLine()).trim().split(" ");
+            readSegment = Long.parseLong(parts[0]);
+            readOffset = Long.parseLong(parts[1]);
+        } catch (RuntimeException e) {
+            logger.warning("Ignoring unreadable HipChat outbox checkpoint " + file);
+            readSegment = 0;
+            readOffset = 0;
+        } finally {
+            in.close();
+        }
+    }
+
+    private void writeCheckpoint() throws IOException {
+        File tmp = new File(dir, CHECKPOINT + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write((readSegment + " " + readOffset + "\n").getBytes("UTF-8"));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        replace(tmp, new File(dir, CHECKPOINT));
+    }
+
+    private void loadDelivered() throws IOException {
+        File file = new File(dir, DELIVERED);
+        if (file.exists()) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.length() > 0) {
+                        delivered.put(line, Boolean.TRUE);
+                        deliveredLogLines++;
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        }
+        deliveredLog = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+    }
+
+    private void rewriteDelivered() throws IOException {
+        deliveredLog.close();
+        File tmp = new File(dir, DELIVERED + ".tmp");
+        Writer out = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+        try {
+            for (String key : delivered.keySet()) {
+                out.write(key);
+                out.write('\n');
+            }
+        } finally {
+            out.close();
+        }
+        File file = new File(dir, DELIVERED);
+        replace(tmp, file);
+        deliveredLogLines = delivered.size();
+        deliveredLog = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+    }
+
+    private static void replace(File from, File to) throws IOException {
+        if (!from.renameTo(to)) {
+            // Windows will not rename over an existing file
+            if (!to.delete() || !from.renameTo(to)) {
+                throw new IOException("Could not replace " + to);
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package jenkins.plugins.hipchat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.logging.Logger;
+
+/**
+ * Decides which of the Jenkins masters sharing a {@link SharedOutboxQueue} may drain it.
+ * <p>
+ * The lease file holds the owner's node name and a counter that the owner increments on every
+ * renewal, and is only read and written under an exclusive file lock. The owner renews the lease
+ * each time it looks for work. Another node takes over once it has seen the lease file unchanged
+ * for the whole lease time, judged by its own clock, so the nodes' clocks need not agree. The lease
+ * time must therefore be longer than the owner can go without looking for work: one delivery
+ * attempt plus the backoff after it (see {@link HipChatOutbox#getMinLeaseMillis}). The owner checks
+ * the lease again before recording a delivery, in case it was taken over in the meantime.
+ * <p>
+ * An owner that shuts down releases the lease so that a standby can take over right away.
+ */
+final class OutboxLease {
+
+    private static final Logger logger = Logger.getLogger(OutboxLease.class.getName());
+
+    static final String FILE_NAME = "lease";
+    private static final String RELEASED = "-";
+
+    private final File file;
+    private final String node;
+    private final long durationMillis;
+
+    private boolean held;
+    private long renewedAt;
+    private String lastSeen;
+    private long lastSeenAt;
+
+    OutboxLease(File dir, String node, long durationMillis) {
+        this.file = new File(dir, FILE_NAME);
+        this.node = node;
+        this.durationMillis = durationMillis;
+    }
+
+    /**
+     * Renews the lease if this node holds it, or takes it over if it has expired or was released.
+     *
+     * @param now the local clock, {@link System#nanoTime()} in milliseconds
+     * @return whether this node may drain the queue until the next call
+     */
+    synchronized boolean acquire(long now) throws IOException {
+        if (held && now - renewedAt < durationMillis / 4) {
+            // renewed so recently that nobody can have taken over
+            return true;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            FileLock lock = channel.lock();
+            try {
+                String current = raf.length() > 0 ? raf.readUTF() : RELEASED + " 0";
+                String owner = current.substring(0, current.lastIndexOf(' '));
+                long generation = Long.parseLong(current.substring(current.lastIndexOf(' ') + 1));
+                if (!current.equals(lastSeen)) {
+                    lastSeen = current;
+                    lastSeenAt = now;
+                }
+                // nobody else can have taken over while the file still names this node
+                boolean mine = owner.equals(node);
+                if (!mine && !owner.equals(RELEASED) && now - lastSeenAt < durationMillis) {
+                    held = false;
+                    return false;
+                }
+                if (owner.equals(RELEASED)) {
+                    logger.info("Node " + node + " acquired the HipChat outbox lease");
+                } else if (!mine) {
+                    logger.info("Node " + node + " took over the HipChat outbox lease from " + owner);
+                }
+                String renewed = node + " " + (generation + 1);
+                write(raf, renewed);
+                lastSeen = renewed;
+                lastSeenAt = now;
+                held = true;
+                renewedAt = now;
+                return true;
+            } finally {
+                lock.release();
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Unreadable HipChat outbox lease " + file + ": " + e);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Gives up the lease if this node holds it.
+     */
+    synchronized void release() throws IOException {
+        if (!held) {
+            return;
+        }
+        held = false;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileLock lock = raf.getChannel().lock();
+            try {
+                String current = raf.length() > 0 ? raf.readUTF() : "";
+                if (current.startsWith(node + " ")) {
+                    write(raf, RELEASED + " " + current.substring(current.lastIndexOf(' ') + 1));
+                }
+            } finally {
+                lock.release();
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    String getNode() {
+        return node;
+    }
+
+    private static void write(RandomAccessFile raf, String value) throws IOException {
+        raf.seek(0);
+        raf.writeUTF(value);
+        raf.setLength(raf.getFilePointer());
+        raf.getChannel().force(false);
+    }
+}
@@ -0,0 +1,53 @@
+package jenkins.plugins.hipchat;
+
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * Where the {@link HipChatOutbox} keeps undelivered entries: the local {@link OutboxJournal}, or a
+ * {@link SharedOutboxQueue} that several Jenkins masters take turns draining.
+ * <p>
+ * Entries are read one at a time: {@link #peek()} returns the oldest one until it is
+ * {@link #ack acknowledged}. {@link #peek(Set)} looks past the entries of rooms that cannot be
+ * delivered to right now, so that they do not hold up the others.
+ */
+interface OutboxQueue {
+
+    void append(OutboxEntry entry) throws IOException;
+
+    /**
+     * Number of appends not yet forced to disk.
+     */
+    int getUnsynced();
+
+    /**
+     * Forces appended entries and the read position to disk.
+     */
+    void sync() throws IOException;
+
+    /**
+     * Returns the oldest unacknowledged entry without removing it, or null if there is none, or none
+     * that this node may deliver right now.
+     */
+    OutboxEntry peek() throws IOException;
+
+    /**
+     * Returns the oldest unacknowledged entry for a room not in the given set, as {@link #peek()} does.
+     */
+    OutboxEntry peek(Set<String> skippedRooms) throws IOException;
+
+    /**
+     * Removes the entry last returned by {@link #peek()} or {@link #peek(Set)} and remembers its key
+     * as delivered.
+     */
+    void ack(OutboxEntry entry) throws IOException;
+
+    boolean isDelivered(String key);
+
+    /**
+     * Bytes of queue still waiting for delivery.
+     */
+    long getPendingBytes();
+
+    void close() throws IOException;
+}
@@ -0,0 +1,151 @@
+package jenkins.plugins.hipchat;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.Item;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.listeners.ItemListener;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers the results of the last few completed builds of each project, so the result of the
+ * build before a completing one is known without loading build records from disk.
+ * <p>
+ * Every completion is recorded by {@link HipChatListener}. Only when nothing is known yet, e.g.
+ * right after a restart, is {@link Run#getPreviousCompletedBuild()} consulted, and its answer kept.
+ */
+public final class PreviousResults {
+
+    static final int DEPTH = 8;
+
+    private static final PreviousResults INSTANCE = new PreviousResults();
+
+    private final ConcurrentMap<String, History> histories = new ConcurrentHashMap<String, History>();
+
+    public static PreviousResults get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return the result of the latest build before {@code build} that has completed, or null if there is none
+     */
+    @SuppressWarnings("rawtypes")
+    public Result getPreviousResult(AbstractBuild build) {
+        String fullName = build.getProject().getFullName();
+        Result result = lookup(fullName, build.getNumber());
+        if (result == null) {
+            Run previous = build.getPreviousCompletedBuild();
+            if (previous != null) {
+                result = previous.getResult();
+                record(fullName, previous.getNumber(), result);
+            }
+        }
+        return result;
+    }
+
+    @SuppressWarnings("rawtypes")
+    public void completed(AbstractBuild build) {
+        Result result = build.getResult();
+        if (result != null) {
+            record(build.getProject().getFullName(), build.getNumber(), result);
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    public void deleted(AbstractBuild build) {
+        History history = histories.get(build.getProject().getFullName());
+        if (history != null) {
+            history.remove(build.getNumber());
+        }
+    }
+
+    Result lookup(String fullName, int number) {
+        History history = histories.get(fullName);
+        return history != null ? history.before(number) : null;
+    }
+
+    void record(String fullName, int number, Result result) {
+        History history = histories.get(fullName);
+        if (history == null) {
+            History created = new History();
+            history = histories.putIfAbsent(fullName, created);
+            if (history == null) {
+                history = created;
+            }
+        }
+        history.add(number, result);
+    }
+
+    public void invalidate(String fullName) {
+        histories.remove(fullName);
+    }
+
+    public void clear() {
+        histories.clear();
+    }
+
+    /**
+     * Build numbers and results of the latest completed builds, highest number first.
+     */
+    private static final class History {
+        private final int[] numbers = new int[DEPTH];
+        private final Result[] results = new Result[DEPTH];
+        private int size;
+
+        synchronized void add(int number, Result result) {
+            int i = 0;
+            while (i < size && numbers[i] > number) {
+                i++;
+            }
+            if (i < size && numbers[i] == number) {
+                results[i] = result;
+                return;
+            }
+            if (i == DEPTH) {
+                return;
+            }
+            int moved = Math.min(size, DEPTH - 1) - i;
+            System.arraycopy(numbers, i, numbers, i + 1, moved);
+            System.arraycopy(results, i, results, i + 1, moved);
+            numbers[i] = number;
+            results[i] = result;
+            size = Math.min(size + 1, DEPTH);
+        }
+
+        synchronized Result before(int number) {
+            for (int i = 0; i < size; i++) {
+                if (numbers[i] < number) {
+                    return results[i];
+                }
+            }
+            return null;
+        }
+
+        synchronized void remove(int number) {
+            for (int i = 0; i < size; i++) {
+                if (numbers[i] == number) {
+                    System.arraycopy(numbers, i + 1, numbers, i, size - i - 1);
+                    System.arraycopy(results, i + 1, results, i, size - i - 1);
+                    results[--size] = null;
+                    return;
+                }
+            }
+        }
+    }
+
+    @Extension
+    public static final class ProjectListener extends ItemListener {
+        @Override
+        public void onRenamed(Item item, String oldName, String newName) {
+            get().clear();
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            get().invalidate(item.getFullName());
+        }
+    }
+}
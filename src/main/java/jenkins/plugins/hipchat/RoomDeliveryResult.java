@@ -0,0 +1,102 @@
+package jenkins.plugins.hipchat;
+
+/**
+ * Outcome of posting one message to one room.
+ */
+public final class RoomDeliveryResult {
+
+    private final String room;
+    private final boolean success;
+    private final int responseCode;
+    private final long latencyMillis;
+    private final String error;
+    private final DeliveryFailure failure;
+    private final int attempts;
+    private final boolean deferred;
+
+    RoomDeliveryResult(String room, boolean success, int responseCode, long latencyMillis, String error) {
+        this(room, success, responseCode, latencyMillis, error, null, 0, false);
+    }
+
+    /**
+     * A message HipChat answered but did not accept.
+     */
+    RoomDeliveryResult(String room, int responseCode, long latencyMillis, DeliveryFailure failure) {
+        this(room, false, responseCode, latencyMillis, failure.toString(), failure, 0, false);
+    }
+
+    /**
+     * A message held back by the rate limits or a retry delay, still to be posted.
+     */
+    static RoomDeliveryResult deferred(String room, long delayMillis) {
+        return new RoomDeliveryResult(room, false, 0, 0, "deferred for " + delayMillis + "ms", null, 0, true);
+    }
+
+    private RoomDeliveryResult(String room, boolean success, int responseCode, long latencyMillis, String error,
+                               DeliveryFailure failure, int attempts, boolean deferred) {
+        this.room = room;
+        this.success = success;
+        this.responseCode = responseCode;
+        this.latencyMillis = latencyMillis;
+        this.error = error;
+        this.failure = failure;
+        this.attempts = attempts;
+        this.deferred = deferred;
+    }
+
+    RoomDeliveryResult withAttempts(int attempts) {
+        return new RoomDeliveryResult(room, success, responseCode, latencyMillis, error, failure, attempts, deferred);
+    }
+
+    public String getRoom() {
+        return room;
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    /**
+     * HTTP status returned by HipChat, or 0 when no response was received.
+     */
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    public long getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * Why HipChat did not accept the message, or null if it did or did not answer.
+     */
+    public DeliveryFailure getFailure() {
+        return failure;
+    }
+
+    /**
+     * Requests sent to HipChat; 0 if the message was refused without trying.
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Whether the message is still to be posted, its outcome recorded once it has been.
+     */
+    public boolean isDeferred() {
+        return deferred;
+    }
+
+    @Override
+    public String toString() {
+        if (deferred) {
+            return room + ": " + error;
+        }
+        return room + ": " + (success ? "sent" : "failed (" + error + ")") + " in " + latencyMillis + "ms";
+    }
+}
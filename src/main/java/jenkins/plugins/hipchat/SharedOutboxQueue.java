@@ -0,0 +1,338 @@
+package jenkins.plugins.hipchat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Outbox for Jenkins masters that share a {@code JENKINS_HOME}, e.g. an active/standby pair. Every
+ * node queues entries; only the node holding the {@link OutboxLease} delivers them.
+ * <p>
+ * Each entry is its own file in {@code queue/}, written elsewhere and moved into place, so nodes
+ * never write the same file. File names start with the creation time, which orders the queue.
+ * The keys of delivered entries, which identify a message for a room, are appended to
+ * {@code delivered.log} before the entry file is deleted. A node that takes over the lease reads
+ * them first, so entries the previous owner delivered are not posted again. Only a message whose
+ * delivery was under way when the previous owner stopped can be posted twice.
+ * <p>
+ * The directory must be on a file system that supports file locks and atomic renames.
+ */
+final class SharedOutboxQueue implements OutboxQueue {
+
+    private static final Logger logger = Logger.getLogger(SharedOutboxQueue.class.getName());
+
+    static final String QUEUE = "queue";
+    static final String INCOMING = "incoming";
+    static final String DELIVERED = "delivered.log";
+
+    private static final String SUFFIX = ".msg";
+
+    private final File dir;
+    private final File queue;
+    private final File incoming;
+    private final OutboxLease lease;
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final NavigableSet<String> pending = new TreeSet<String>();
+    // the room of each pending entry read so far, so skipped rooms' entries are not read again
+    private final Map<String, String> rooms = new HashMap<String, String>();
+    private String current;
+    private boolean leased;
+
+    private final Map<String, Boolean> delivered = new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > OutboxJournal.DELIVERED_KEYS;
+        }
+    };
+    private Writer deliveredLog;
+    private int deliveredLogLines;
+
+    SharedOutboxQueue(File dir, String node, long leaseMillis) throws IOException {
+        this.dir = dir;
+        this.queue = new File(dir, QUEUE);
+        this.incoming = new File(dir, INCOMING);
+        for (File d : new File[]{queue, incoming}) {
+            if (!d.isDirectory() && !d.mkdirs()) {
+                throw new IOException("Could not create " + d);
+            }
+        }
+        this.lease = new OutboxLease(dir, node, leaseMillis);
+        loadDelivered();
+    }
+
+    /**
+     * Writes the entry to disk and moves it into the queue, where any node can see it.
+     */
+    public void append(OutboxEntry entry) throws IOException {
+        String name = String.format("%016d-%s-%08d%s", entry.createdAt, fileSafe(lease.getNode()),
+                sequence.incrementAndGet(), SUFFIX);
+        File tmp = new File(incoming, name);
+        FileOutputStream stream = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            entry.writeTo(out);
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        if (!tmp.renameTo(new File(queue, name))) {
+            tmp.delete();
+            throw new IOException("Could not queue " + name + " in " + queue);
+        }
+    }
+
+    /**
+     * Entries are forced to disk as they are appended.
+     */
+    public int getUnsynced() {
+        return 0;
+    }
+
+    public void sync() {
+    }
+
+    /**
+     * Returns the oldest entry in the queue, or null if there is none or another node holds the lease.
+     */
+    public OutboxEntry peek() throws IOException {
+        return peek(Collections.<String>emptySet());
+    }
+
+    /**
+     * Returns the oldest entry in the queue for a room not in the given set, or null if there is none
+     * or another node holds the lease.
+     */
+    public synchronized OutboxEntry peek(Set<String> skippedRooms) throws IOException {
+        if (!lease.acquire(now())) {
+            if (leased) {
+                logger.info("HipChat outbox lease lost by " + lease.getNode());
+                leased = false;
+                forget();
+            }
+            return null;
+        }
+        if (!leased) {
+            // pick up what the previous owner delivered
+            leased = true;
+            reloadDelivered();
+            forget();
+        }
+        current = null;
+        OutboxEntry entry = next(pending, skippedRooms);
+        if (entry == null) {
+            String last = pending.isEmpty() ? null : pending.last();
+            list();
+            entry = next(last == null ? pending : pending.tailSet(last, false), skippedRooms);
+        }
+        return entry;
+    }
+
+    /**
+     * Records the entry as delivered and removes it from the queue, unless another node took over the
+     * lease while it was being delivered. The files are then the new owner's, which may post the entry
+     * again.
+     */
+    public synchronized void ack(OutboxEntry entry) throws IOException {
+        if (current == null) {
+            throw new IllegalStateException("ack without peek");
+        }
+        if (!lease.acquire(now())) {
+            logger.warning("HipChat outbox lease lost by " + lease.getNode() + " while delivering " + entry.key);
+            leased = false;
+            forget();
+            return;
+        }
+        if (entry.key != null && delivered.put(entry.key, Boolean.TRUE) == null) {
+            deliveredLog.write(entry.key);
+            deliveredLog.write('\n');
+            deliveredLog.flush();
+            if (++deliveredLogLines > 2 * OutboxJournal.DELIVERED_KEYS) {
+                rewriteDelivered();
+            }
+        }
+        File file = new File(queue, current);
+        if (file.exists() && !file.delete()) {
+            logger.warning("Could not delete delivered HipChat outbox entry " + file);
+        }
+        pending.remove(current);
+        rooms.remove(current);
+        current = null;
+    }
+
+    public synchronized boolean isDelivered(String key) {
+        return key != null && delivered.containsKey(key);
+    }
+
+    public long getPendingBytes() {
+        long bytes = 0;
+        File[] files = queue.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                bytes += file.length();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Releases the lease, so that another node can take over without waiting for it to expire.
+     */
+    public synchronized void close() throws IOException {
+        deliveredLog.close();
+        lease.release();
+    }
+
+    /**
+     * The oldest readable entry among the given names for a room not in the given set. Unreadable
+     * entries are dropped from the queue on the way.
+     */
+    private OutboxEntry next(NavigableSet<String> names, Set<String> skippedRooms) throws IOException {
+        for (Iterator<String> it = names.iterator(); it.hasNext(); ) {
+            String name = it.next();
+            if (skippedRooms.contains(rooms.get(name))) {
+                continue;
+            }
+            OutboxEntry entry = read(new File(queue, name));
+            if (entry == null) {
+                it.remove();
+                rooms.remove(name);
+            } else if (!skippedRooms.contains(entry.room)) {
+                current = name;
+                return entry;
+            } else {
+                rooms.put(name, entry.room);
+            }
+        }
+        return null;
+    }
+
+    private void forget() {
+        pending.clear();
+        rooms.clear();
+        current = null;
+    }
+
+    private void list() {
+        String[] names = queue.list(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+        if (names != null) {
+            Arrays.sort(names);
+            pending.addAll(Arrays.asList(names));
+        }
+    }
+
+    /**
+     * Reads an entry file, or returns null if it was deleted meanwhile or is unreadable, in which case
+     * it is moved aside.
+     */
+    private OutboxEntry read(File file) throws IOException {
+        FileInputStream stream;
+        try {
+            stream = new FileInputStream(file);
+        } catch (IOException e) {
+            return null;
+        }
+        try {
+            return OutboxEntry.readFrom(new DataInputStream(new BufferedInputStream(stream)));
+        } catch (IOException e) {
+            logger.warning("Skipping unreadable HipChat outbox entry " + file);
+            stream.close();
+            if (!file.renameTo(new File(dir, file.getName() + ".bad"))) {
+                file.delete();
+            }
+            return null;
+        } finally {
+            stream.close();
+        }
+    }
+
+    private void loadDelivered() throws IOException {
+        File file = new File(dir, DELIVERED);
+        readDelivered(file);
+        deliveredLog = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+    }
+
+    private void reloadDelivered() throws IOException {
+        // the previous owner may have replaced the file
+        deliveredLog.close();
+        delivered.clear();
+        deliveredLogLines = 0;
+        loadDelivered();
+    }
+
+    private void readDelivered(File file) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.length() > 0) {
+                    delivered.put(line, Boolean.TRUE);
+                    deliveredLogLines++;
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void rewriteDelivered() throws IOException {
+        deliveredLog.close();
+        File tmp = new File(dir, DELIVERED + ".tmp");
+        Writer out = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+        try {
+            for (String key : delivered.keySet()) {
+                out.write(key);
+                out.write('\n');
+            }
+        } finally {
+            out.close();
+        }
+        File file = new File(dir, DELIVERED);
+        if (!tmp.renameTo(file)) {
+            // Windows will not rename over an existing file
+            if (!file.delete() || !tmp.renameTo(file)) {
+                throw new IOException("Could not replace " + file);
+            }
+        }
+        deliveredLogLines = delivered.size();
+        deliveredLog = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+    }
+
+    private static String fileSafe(String node) {
+        return node.replaceAll("[^A-Za-z0-9._]", "_");
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+}
@@ -1,19 +1,27 @@
 package jenkins.plugins.hipchat;
 
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HostConfiguration;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpStatus;
 import org.apache.commons.httpclient.methods.PostMethod;
 
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import jenkins.model.Jenkins;
-import hudson.ProxyConfiguration;
-
 public class StandardHipChatService implements HipChatService {
 
     private static final Logger logger = Logger.getLogger(StandardHipChatService.class.getName());
 
+    private static final String DEADLINE_EXCEEDED = "deadline exceeded";
+
+    private String protocol = "https";
     private String host = "api.hipchat.com";
     private String token;
     private String[] roomIds;
@@ -31,48 +39,311 @@ public class StandardHipChatService implements HipChatService {
     }
 
     public void publish(String message, String color) {
-        for (String roomId : roomIds) {
-            logger.info("Posting: " + from + " to " + roomId + ": " + message + " " + color);
-            HttpClient client = getHttpClient();
-            String url = "https://" + host + "/v1/rooms/message?auth_token=" + token;
-            PostMethod post = new PostMethod(url);
+        deliver(message, color);
+    }
+
+    /**
+     * A service posting through this one that records each room's outcome in the
+     * {@link DeliveryAudit} under the given message key.
+     *
+     * @param messageKey e.g. {@code "folder/job#12:completed:1380000000000"}; null to not record the deliveries
+     */
+    HipChatService forMessage(final String messageKey) {
+        if (messageKey == null) {
+            return this;
+        }
+        return new HipChatService() {
+            public void publish(String message) {
+                publish(message, "yellow");
+            }
+
+            public void publish(String message, String color) {
+                deliver(message, color, messageKey);
+            }
+        };
+    }
+
+    /**
+     * Posts the message to every room, concurrently when there is more than one, and reports how
+     * each room fared.
+     */
+    List<RoomDeliveryResult> deliver(String message, String color) {
+        return deliver(message, color, null);
+    }
+
+    /**
+     * Posts the message to every room as {@link #deliver(String, String)} does, recording the
+     * outcomes in the {@link DeliveryAudit} unless the message key is null. The request deadline
+     * covers all the rooms, including any time spent waiting for a free slot.
+     * <p>
+     * A room the rate limits hold back, or that HipChat asks to retry later, does not hold the
+     * calling thread: its result is {@link RoomDeliveryResult#isDeferred() deferred} and the message
+     * is posted, and its outcome recorded, once it is due.
+     */
+    List<RoomDeliveryResult> deliver(final String message, final String color, final String messageKey) {
+        final long deadline = System.currentTimeMillis() + HipChatHttpClient.getRequestDeadlineMillis();
+        List<Callable<RoomDeliveryResult>> tasks = new ArrayList<Callable<RoomDeliveryResult>>(roomIds.length);
+        for (final String roomId : roomIds) {
+            tasks.add(new Callable<RoomDeliveryResult>() {
+                public RoomDeliveryResult call() {
+                    return new RoomDelivery(roomId, message, color, messageKey, true, deadline).post();
+                }
+            });
+        }
+        try {
+            return DeliveryExecutor.get().invokeAll(tasks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.log(Level.WARNING, "Interrupted while posting to HipChat", e);
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Error posting to HipChat", e);
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Posts to a single room once, within the rate limits. Fails at once while the room's circuit
+     * breaker is open, while the room is over its rate limits, and when HipChat signals backpressure
+     * (a {@link DeliveryFailure#isRetryable() retryable failure}) or cannot be reached, for the caller
+     * to try again later; aborts a request still running at the request deadline. Never throws.
+     */
+    RoomDeliveryResult deliverToRoom(String roomId, String message, String color) {
+        return deliverToRoom(roomId, message, color, null);
+    }
+
+    /**
+     * Posts to a single room as {@link #deliverToRoom(String, String, String)} does, and records the
+     * outcome in the {@link DeliveryAudit} unless the message key is null.
+     */
+    RoomDeliveryResult deliverToRoom(String roomId, String message, String color, String messageKey) {
+        return new RoomDelivery(roomId, message, color, messageKey, false,
+                System.currentTimeMillis() + HipChatHttpClient.getRequestDeadlineMillis()).post();
+    }
+
+    /**
+     * One message on its way to one room. A deferrable delivery never waits for the rate limits or a
+     * retry delay: it {@link DeliveryExecutor#schedule schedules} itself to carry on when it is due.
+     */
+    private final class RoomDelivery implements Runnable {
+        private final String roomId;
+        private final String message;
+        private final String color;
+        private final String messageKey;
+        private final boolean deferrable;
+        private final long start = System.currentTimeMillis();
+        /** When to give up; 0 while deferred before its first request, as the deadline then starts over. */
+        private long deadline;
+        private int attempt;
+        private int attempts;
+        /** Whether the circuit breaker let it through. */
+        private boolean allowed;
+        /** Whether it holds rate limit quota that has come due. */
+        private boolean reserved;
 
+        RoomDelivery(String roomId, String message, String color, String messageKey, boolean deferrable, long deadline) {
+            this.roomId = roomId;
+            this.message = message;
+            this.color = color;
+            this.messageKey = messageKey;
+            this.deferrable = deferrable;
+            this.deadline = deadline;
+        }
+
+        public void run() {
+            if (deadline == 0) {
+                deadline = System.currentTimeMillis() + HipChatHttpClient.getRequestDeadlineMillis();
+            }
             try {
-                post.addParameter("from", from);
-                post.addParameter("room_id", roomId);
-                post.addParameter("message", message);
-                post.addParameter("color", color);
-                post.addParameter("notify", shouldNotify(color));
-                post.getParams().setContentCharset("UTF-8");
-                int responseCode = client.executeMethod(post);
-                String response = post.getResponseBodyAsString();
-                if(responseCode != HttpStatus.SC_OK || ! response.contains("\"sent\"")) {
-                    logger.log(Level.WARNING, "HipChat post may have failed. Response: " + response);
+                post();
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Error posting to HipChat room " + roomId, e);
+            }
+        }
+
+        /**
+         * @return the outcome, already recorded; or a deferred result, the outcome to be recorded once known
+         */
+        RoomDeliveryResult post() {
+            HipChatRateLimiter limiter = HipChatRateLimiter.get();
+            CircuitBreaker breaker = HipChatCircuitBreakers.get().getBreaker(token, roomId);
+            if (!allowed && breaker.isRefusing(System.currentTimeMillis())) {
+                // before taking any quota, which a refused request would waste
+                return refused(breaker);
+            }
+            RoomDeliveryResult result;
+            while (true) {
+                long delay = -1;
+                if (reserved) {
+                    reserved = false;
+                } else {
+                    long wait = deferrable ? limiter.reserve(token, roomId) : limiter.tryAcquire(token, roomId);
+                    if (wait > 0 && deferrable) {
+                        logger.fine("HipChat room " + roomId + " is over its rate limits, posting in " + wait + "ms");
+                        return defer(wait, true);
+                    }
+                    if (wait > 0) {
+                        result = new RoomDeliveryResult(roomId, 0, System.currentTimeMillis() - start, DeliveryFailure.RATE_LIMITED);
+                        break;
+                    }
                 }
-            } catch (Exception e) {
-                logger.log(Level.WARNING, "Error posting to HipChat", e);
-            } finally {
-                post.releaseConnection();
+                if (!allowed) {
+                    // only once within the rate limits, so a deferred request does not keep a half-open breaker waiting
+                    if (!breaker.allow(System.currentTimeMillis())) {
+                        return refused(breaker);
+                    }
+                    allowed = true;
+                    if (logger.isLoggable(Level.FINE)) {
+                        logger.fine("Posting: " + from + " to " + roomId + ": " + message + " " + color);
+                    }
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                Semaphore slot;
+                try {
+                    slot = remaining > 0 ? DeliveryExecutor.get().acquireInFlight(remaining) : null;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    result = new RoomDeliveryResult(roomId, false, 0, System.currentTimeMillis() - start, "interrupted");
+                    break;
+                }
+                remaining = deadline - System.currentTimeMillis();
+                if (slot == null || remaining <= 0) {
+                    if (slot != null) {
+                        slot.release();
+                    }
+                    result = new RoomDeliveryResult(roomId, false, 0, System.currentTimeMillis() - start, DEADLINE_EXCEEDED);
+                    break;
+                }
+                HttpClient client = HipChatHttpClient.get();
+                HostConfiguration hostConfiguration = HipChatHttpClient.getHostConfiguration(protocol, host);
+                PostMethod post = newPost(roomId, message, color);
+                HipChatHttpClient.Deadline requestDeadline = HipChatHttpClient.abortAfter(post, remaining);
+                attempts++;
+                try {
+                    int responseCode = client.executeMethod(hostConfiguration, post);
+                    String response = HipChatResponse.read(post);
+                    long latency = System.currentTimeMillis() - start;
+                    if (isSent(responseCode, response)) {
+                        result = new RoomDeliveryResult(roomId, true, responseCode, latency, null);
+                    } else {
+                        DeliveryFailure failure = HipChatResponse.classify(responseCode, response);
+                        if (failure.isRetryable()) {
+                            Header retryAfter = post.getResponseHeader("Retry-After");
+                            delay = HipChatRateLimiter.parseRetryAfter(retryAfter == null ? null : retryAfter.getValue(), System.currentTimeMillis());
+                            if (delay >= 0) {
+                                limiter.pause(token, roomId, delay);
+                            } else {
+                                delay = limiter.backoffMillis(attempt);
+                            }
+                        } else {
+                            logger.log(Level.WARNING, "HipChat post to " + roomId + " failed (" + failure + "). Response: " + response);
+                        }
+                        result = new RoomDeliveryResult(roomId, responseCode, latency, failure);
+                    }
+                } catch (ConnectException e) {
+                    delay = limiter.backoffMillis(attempt);
+                    result = new RoomDeliveryResult(roomId, false, 0, System.currentTimeMillis() - start, e.toString());
+                } catch (Exception e) {
+                    if (!requestDeadline.isExpired()) {
+                        logger.log(Level.WARNING, "Error posting to HipChat room " + roomId, e);
+                    }
+                    result = new RoomDeliveryResult(roomId, false, 0, System.currentTimeMillis() - start, e.toString());
+                } finally {
+                    requestDeadline.cancel();
+                    post.releaseConnection();
+                    slot.release();
+                }
+                if (requestDeadline.isExpired()) {
+                    result = new RoomDeliveryResult(roomId, false, 0, System.currentTimeMillis() - start, DEADLINE_EXCEEDED);
+                    break;
+                }
+                if (delay < 0 || !deferrable || attempt >= limiter.getMaxRetries() || System.currentTimeMillis() + delay >= deadline) {
+                    break;
+                }
+                logger.fine("HipChat room " + roomId + " unavailable (" + result.getError() + "), retrying in " + delay + "ms");
+                HipChatMetrics.get().retried();
+                attempt++;
+                return defer(delay, false);
             }
+            return finish(breaker, result);
         }
-    }
-    
-    private HttpClient getHttpClient() {
-        HttpClient client = new HttpClient();
-        if (Jenkins.getInstance() != null) {
-            ProxyConfiguration proxy = Jenkins.getInstance().proxy;
-            if (proxy != null) {
-                client.getHostConfiguration().setProxy(proxy.name, proxy.port);
+
+        private RoomDeliveryResult defer(long delayMillis, boolean reserved) {
+            this.reserved = reserved;
+            if (attempts == 0) {
+                deadline = 0;
+            }
+            DeliveryExecutor.get().schedule(this, delayMillis);
+            return RoomDeliveryResult.deferred(roomId, delayMillis);
+        }
+
+        private RoomDeliveryResult refused(CircuitBreaker breaker) {
+            RoomDeliveryResult refused = breaker.refused();
+            logger.fine("Not posting to HipChat room " + roomId + ": " + refused.getError());
+            HipChatMetrics.get().refused();
+            return record(refused);
+        }
+
+        private RoomDeliveryResult finish(CircuitBreaker breaker, RoomDeliveryResult result) {
+            result = result.withAttempts(attempts);
+            if (!result.isSuccess()) {
+                logger.warning("Giving up on HipChat room " + roomId + ": " + result.getError());
+            }
+            logger.fine("HipChat delivery " + result);
+            if (allowed) {
+                HipChatCircuitBreakers.get().record(breaker, result);
             }
+            HipChatMetrics.get().delivered(result);
+            return record(result);
         }
-        return client;
+
+        private RoomDeliveryResult record(RoomDeliveryResult result) {
+            if (messageKey != null) {
+                DeliveryAudit.get().record(messageKey, result);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Builds the request posting the message to one room.
+     */
+    protected PostMethod newPost(String roomId, String message, String color) {
+        PostMethod post = new PostMethod("/v1/rooms/message?auth_token=" + token);
+        post.addParameter("from", from);
+        post.addParameter("room_id", roomId);
+        post.addParameter("message", message);
+        post.addParameter("color", color);
+        post.addParameter("notify", shouldNotify(color) ? "1" : "0");
+        post.getParams().setContentCharset("UTF-8");
+        return post;
+    }
+
+    /**
+     * Whether the response confirms the message was posted.
+     *
+     * @param response the start of the body, see {@link HipChatResponse#read}; null if there is none
+     */
+    protected boolean isSent(int responseCode, String response) {
+        return responseCode == HttpStatus.SC_OK && response != null && response.contains("\"sent\"");
     }
 
-    private String shouldNotify(String color) {
-        return color.equalsIgnoreCase("green") ? "0" : "1";
+    protected static boolean shouldNotify(String color) {
+        return !color.equalsIgnoreCase("green");
+    }
+
+    protected String getToken() {
+        return token;
+    }
+
+    protected String getFrom() {
+        return from;
     }
 
     void setHost(String host) {
         this.host = host;
     }
+
+    void setProtocol(String protocol) {
+        this.protocol = protocol;
+    }
 }
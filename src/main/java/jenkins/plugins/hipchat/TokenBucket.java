@@ -0,0 +1,87 @@
+package jenkins.plugins.hipchat;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket that hands out reservations instead of refusals.
+ * <p>
+ * Each {@link #reserve(long)} takes one permit and returns how long the caller must wait before
+ * using it. Permits may be borrowed from the future, so a burst of requests is spread out at the
+ * refill rate rather than rejected.
+ */
+final class TokenBucket {
+
+    private final int capacity;
+    private final double nanosPerPermit;
+    private double permits;
+    private long lastRefill;
+
+    TokenBucket(int capacity, long period, TimeUnit unit, long now) {
+        this.capacity = Math.max(1, capacity);
+        this.nanosPerPermit = (double) unit.toNanos(period) / this.capacity;
+        this.permits = this.capacity;
+        this.lastRefill = now;
+    }
+
+    /**
+     * Takes one permit.
+     *
+     * @param now current {@link System#nanoTime()}
+     * @return nanoseconds to wait before the permit may be used, zero if it is available now
+     */
+    synchronized long reserve(long now) {
+        refill(now);
+        permits -= 1;
+        return permits >= 0 ? 0 : (long) Math.ceil(-permits * nanosPerPermit);
+    }
+
+    /**
+     * Takes one permit, unless it could only be used after more than {@code maxWaitNanos}.
+     *
+     * @param now current {@link System#nanoTime()}
+     * @return nanoseconds to wait before the permit may be used, or -1 if none was taken
+     */
+    synchronized long tryReserve(long now, long maxWaitNanos) {
+        refill(now);
+        long wait = permits >= 1 ? 0 : (long) Math.ceil((1 - permits) * nanosPerPermit);
+        if (wait > maxWaitNanos) {
+            return -1;
+        }
+        permits -= 1;
+        return wait;
+    }
+
+    /**
+     * Nanoseconds until a permit is available, without taking one.
+     *
+     * @param now current {@link System#nanoTime()}
+     */
+    synchronized long waitNanos(long now) {
+        refill(now);
+        return permits >= 1 ? 0 : (long) Math.ceil((1 - permits) * nanosPerPermit);
+    }
+
+    /**
+     * Gives back a permit taken but not used.
+     */
+    synchronized void release() {
+        permits = Math.min(capacity, permits + 1);
+    }
+
+    /**
+     * Empties the bucket so nothing more is handed out for the given time, e.g. after HipChat
+     * answered with Retry-After.
+     */
+    synchronized void pause(long now, long nanos) {
+        refill(now);
+        permits = Math.min(permits, -nanos / nanosPerPermit);
+    }
+
+    private void refill(long now) {
+        long elapsed = now - lastRefill;
+        if (elapsed > 0) {
+            permits = Math.min(capacity, permits + elapsed / nanosPerPermit);
+            lastRefill = now;
+        }
+    }
+}
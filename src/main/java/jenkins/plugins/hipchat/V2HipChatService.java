@@ -0,0 +1,45 @@
+package jenkins.plugins.hipchat;
+
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.util.URIUtil;
+import org.apache.commons.httpclient.URIException;
+
+/**
+ * Posts room notifications through the HipChat v2 REST API. The token is sent as a bearer
+ * credential rather than in the URL, and the body is JSON written by {@link JsonRequestEntity}.
+ * Rate limiting and retries work as for the v1 API.
+ */
+public class V2HipChatService extends StandardHipChatService {
+
+    public V2HipChatService(String token, String roomId, String from) {
+        super(token, roomId, from);
+    }
+
+    @Override
+    protected PostMethod newPost(String roomId, String message, String color) {
+        PostMethod post = new PostMethod("/v2/room/" + encode(roomId) + "/notification");
+        post.setRequestHeader("Authorization", "Bearer " + getToken());
+        post.setRequestEntity(JsonRequestEntity.begin()
+                .field("from", getFrom())
+                .field("message", message)
+                .field("message_format", "html")
+                .field("color", color)
+                .field("notify", shouldNotify(color))
+                .end());
+        return post;
+    }
+
+    @Override
+    protected boolean isSent(int responseCode, String response) {
+        return responseCode == HttpStatus.SC_NO_CONTENT || responseCode == HttpStatus.SC_OK;
+    }
+
+    private static String encode(String roomId) {
+        try {
+            return URIUtil.encodeWithinPath(roomId.trim(), "UTF-8");
+        } catch (URIException e) {
+            throw new IllegalArgumentException("Invalid HipChat room: " + roomId, e);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package jenkins.plugins.hipchat;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+public class ActiveNotifierTest {
+
+    private final HipChatDispatcher dispatcher = new HipChatDispatcher();
+
+    @After
+    public void shutdown() {
+        dispatcher.shutdown(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void startMessageIsRenderedAndPostedOffTheCallingThread() throws Exception {
+        dispatcher.configure(2, 100, HipChatDispatcher.OverflowPolicy.CALLER_RUNS);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Thread> renderedOn = Collections.synchronizedList(new ArrayList<Thread>());
+        RecordingService service = new RecordingService(release);
+
+        ActiveNotifier.sendStarted(dispatcher, "job#1", MessageTemplate.compile("${project} started"),
+                new MessageFields() {
+                    public String get(MessageTemplate.Field field) {
+                        renderedOn.add(Thread.currentThread());
+                        return "job";
+                    }
+                }, service);
+        // returned while the post is still held
+        assertTrue(service.messages.isEmpty());
+        release.countDown();
+        assertTrue(service.await(1));
+        assertNotSame(Thread.currentThread(), renderedOn.get(0));
+        assertEquals("job started green", service.messages.get(0));
+    }
+
+    @Test
+    public void startMessageIsPostedBeforeTheCompletionMessage() throws Exception {
+        dispatcher.configure(4, 100, HipChatDispatcher.OverflowPolicy.CALLER_RUNS);
+        final CountDownLatch release = new CountDownLatch(1);
+        RecordingService service = new RecordingService(release);
+
+        ActiveNotifier.sendStarted(dispatcher, "job#1", MessageTemplate.compile("started"), new MessageFields() {
+            public String get(MessageTemplate.Field field) {
+                return "";
+            }
+        }, service);
+        new AsyncHipChatService(service, dispatcher, "job#1").publish("completed", "red");
+        release.countDown();
+        assertTrue(service.await(2));
+        assertEquals("started green", service.messages.get(0));
+        assertEquals("completed red", service.messages.get(1));
+    }
+
+    /**
+     * Records messages, holding each post until released.
+     */
+    private static final class RecordingService implements HipChatService {
+        final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+        private final CountDownLatch release;
+
+        RecordingService(CountDownLatch release) {
+            this.release = release;
+        }
+
+        public void publish(String message) {
+            publish(message, "yellow");
+        }
+
+        public void publish(String message, String color) {
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (messages) {
+                messages.add(message + " " + color);
+                messages.notifyAll();
+            }
+        }
+
+        boolean await(int count) throws InterruptedException {
+            long until = System.currentTimeMillis() + 10000;
+            synchronized (messages) {
+                while (messages.size() < count && System.currentTimeMillis() < until) {
+                    messages.wait(100);
+                }
+                return messages.size() >= count;
+            }
+        }
+    }
+}
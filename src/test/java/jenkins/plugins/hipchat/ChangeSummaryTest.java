@@ -0,0 +1,45 @@
+package jenkins.plugins.hipchat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChangeSummaryTest {
+
+    @Test
+    public void countsDistinctFilesAndAuthors() {
+        ChangeSummary summary = new ChangeSummary(100);
+        summary.add("alice", Arrays.asList("pom.xml", "README"));
+        summary.add("bob", Arrays.asList("pom.xml"));
+        summary.add("alice", Arrays.asList("src/Main.java"));
+
+        assertEquals(3, summary.getEntryCount());
+        assertEquals(Arrays.asList("alice", "bob"), new ArrayList<String>(summary.getAuthors()));
+        assertFalse(summary.isApproximate());
+        assertEquals("3", summary.getFileCountText());
+    }
+
+    @Test
+    public void estimatesFileCountPastTheLimit() {
+        ChangeSummary summary = new ChangeSummary(1000);
+        for (int commit = 0; commit < 50; commit++) {
+            List<String> paths = new ArrayList<String>();
+            for (int file = 0; file < 1000; file++) {
+                paths.add("module" + (file % 10) + "/src/File" + (commit * 1000 + file) + ".java");
+            }
+            summary.add("author" + (commit % 3), paths);
+        }
+
+        assertTrue(summary.isApproximate());
+        long estimate = summary.getFileCount();
+        assertTrue("estimate " + estimate, Math.abs(estimate - 50000) < 2500);
+        assertTrue(summary.getFileCountText().endsWith("+"));
+        assertEquals(3, summary.getAuthors().size());
+    }
+}
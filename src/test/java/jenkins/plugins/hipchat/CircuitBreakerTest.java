@@ -0,0 +1,62 @@
+package jenkins.plugins.hipchat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest {
+
+    private static final RoomDeliveryResult NOT_FOUND = new RoomDeliveryResult("room", false, 404, 100, "unexpected response");
+    private static final RoomDeliveryResult THROTTLED = new RoomDeliveryResult("room", false, 429, 100, "throttled");
+    private static final RoomDeliveryResult SENT = new RoomDeliveryResult("room", true, 200, 100, null);
+
+    private final CircuitBreaker breaker = new CircuitBreaker("token", "room");
+
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        for (int i = 0; i < 3; i++) {
+            assertTrue(breaker.allow(0));
+            breaker.record(NOT_FOUND, 0, 3, 1000);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allow(999));
+        assertEquals(404, breaker.refused().getResponseCode());
+    }
+
+    @Test
+    public void successResetsFailureCount() {
+        breaker.record(NOT_FOUND, 0, 2, 1000);
+        breaker.record(SENT, 0, 2, 1000);
+        breaker.record(NOT_FOUND, 0, 2, 1000);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void throttlingIsNotAFailure() {
+        breaker.record(THROTTLED, 0, 1, 1000);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void halfOpenLetsOneProbeThrough() {
+        breaker.record(NOT_FOUND, 0, 1, 1000);
+        assertTrue(breaker.allow(1000));
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.allow(1001));
+        breaker.record(SENT, 1001, 1, 1000);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allow(1002));
+    }
+
+    @Test
+    public void failedProbeReopens() {
+        breaker.record(NOT_FOUND, 0, 1, 1000);
+        assertTrue(breaker.allow(1000));
+        breaker.record(NOT_FOUND, 1000, 1, 1000);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allow(1999));
+        assertTrue(breaker.allow(2000));
+    }
+}
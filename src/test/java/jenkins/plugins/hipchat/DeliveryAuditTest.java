@@ -0,0 +1,98 @@
+package jenkins.plugins.hipchat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DeliveryAuditTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void answersPerBuildAndPerRoomQueries() throws Exception {
+        DeliveryAudit audit = new DeliveryAudit(null, DeliveryAudit.MAX_FILE_BYTES, DeliveryAudit.MAX_FILES);
+        audit.record("folder/job#12:started:1380000000000", new RoomDeliveryResult("ops", true, 200, 40, null).withAttempts(1));
+        audit.record("folder/job#12:completed:1380000000000", new RoomDeliveryResult("ops", false, 503, 900, "throttled").withAttempts(3));
+        audit.record("other#1:completed", new RoomDeliveryResult("ops", true, 200, 30, null).withAttempts(1));
+
+        List<DeliveryAudit.Record> build = audit.getBuildRecords("folder/job#12");
+        assertEquals(2, build.size());
+        assertEquals("started", build.get(0).getEvent());
+        DeliveryAudit.Record completed = build.get(1);
+        assertEquals("completed", completed.getEvent());
+        assertFalse(completed.isSuccess());
+        assertEquals(503, completed.getResponseCode());
+        assertEquals(3, completed.getAttempts());
+        assertEquals("throttled", completed.getError());
+
+        List<DeliveryAudit.Record> room = audit.getRoomRecords("ops", 2);
+        assertEquals(2, room.size());
+        assertEquals("other#1", room.get(0).getBuild());
+        assertEquals("folder/job#12", room.get(1).getBuild());
+        assertTrue(audit.getBuildRecords("folder/job#13").isEmpty());
+    }
+
+    @Test
+    public void digestIsRecordedForEveryBuildItCovers() throws Exception {
+        DeliveryAudit audit = new DeliveryAudit(folder.getRoot(), DeliveryAudit.MAX_FILE_BYTES, DeliveryAudit.MAX_FILES);
+        String digestKey = DeliveryAudit.joinKeys(Arrays.asList("a#1:completed:1380000000000", "b#7:completed:1380000001000"));
+        audit.record(digestKey, new RoomDeliveryResult("ops", true, 200, 40, null).withAttempts(1));
+        audit.close();
+
+        DeliveryAudit reloaded = new DeliveryAudit(folder.getRoot(), DeliveryAudit.MAX_FILE_BYTES, DeliveryAudit.MAX_FILES);
+        assertEquals("completed", reloaded.getBuildRecords("a#1").get(0).getEvent());
+        assertEquals("completed", reloaded.getBuildRecords("b#7").get(0).getEvent());
+        assertEquals(2, reloaded.getRoomRecords("ops", 10).size());
+    }
+
+    @Test
+    public void recordsAreReloadedFromRotatedFiles() throws Exception {
+        File dir = folder.getRoot();
+        DeliveryAudit audit = new DeliveryAudit(dir, 200, 2);
+        for (int i = 1; i <= 20; i++) {
+            audit.record("job#" + i + ":completed", new RoomDeliveryResult("ops", true, 200, i, null).withAttempts(1));
+        }
+        audit.close();
+        assertEquals(2, dir.list().length);
+
+        DeliveryAudit reloaded = new DeliveryAudit(dir, 200, 2);
+        assertTrue(reloaded.getBuildRecords("job#1").isEmpty());
+        DeliveryAudit.Record last = reloaded.getBuildRecords("job#20").get(0);
+        assertEquals("ops", last.getRoom());
+        assertEquals(20, last.getLatencyMillis());
+        assertEquals(1, last.getAttempts());
+        assertNull(last.getError());
+    }
+
+    @Test
+    public void truncatedFileIsReadUpToItsLastCompleteRecord() throws Exception {
+        File dir = folder.getRoot();
+        DeliveryAudit audit = new DeliveryAudit(dir, DeliveryAudit.MAX_FILE_BYTES, DeliveryAudit.MAX_FILES);
+        audit.record("job#1:completed", new RoomDeliveryResult("ops", true, 200, 10, null));
+        audit.record("job#2:completed", new RoomDeliveryResult("ops", true, 200, 10, null));
+        audit.close();
+        File file = dir.listFiles()[0];
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+
+        DeliveryAudit reloaded = new DeliveryAudit(dir, DeliveryAudit.MAX_FILE_BYTES, DeliveryAudit.MAX_FILES);
+        assertEquals(1, reloaded.getBuildRecords("job#1").size());
+        assertTrue(reloaded.getBuildRecords("job#2").isEmpty());
+        // appends go to a new file
+        reloaded.record("job#3:completed", new RoomDeliveryResult("ops", true, 200, 10, null));
+        reloaded.close();
+        assertEquals(2, dir.list().length);
+    }
+}
@@ -0,0 +1,147 @@
+package jenkins.plugins.hipchat;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DeliveryExecutorTest {
+
+    @After
+    public void restoreDefaults() {
+        DeliveryExecutor.get().configure(DeliveryExecutor.DEFAULT_PARALLELISM, false, DeliveryExecutor.DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    @Test
+    public void resultsComeBackInTaskOrder() throws Exception {
+        DeliveryExecutor executor = DeliveryExecutor.get();
+        executor.configure(4, false, 8);
+
+        List<Integer> results = executor.invokeAll(tasks(20, new AtomicInteger(), new AtomicInteger()));
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i, (int) results.get(i));
+        }
+    }
+
+    @Test
+    public void fanOutIsCappedByThePoolSize() throws Exception {
+        DeliveryExecutor executor = DeliveryExecutor.get();
+        executor.configure(2, false, 64);
+        AtomicInteger peak = new AtomicInteger();
+
+        executor.invokeAll(tasks(10, new AtomicInteger(), peak));
+        assertTrue("peak " + peak.get(), peak.get() <= 2);
+    }
+
+    @Test
+    public void noRoomIsSkippedWhenThePoolIsReplaced() throws Exception {
+        final DeliveryExecutor executor = DeliveryExecutor.get();
+        executor.configure(2, false, 64);
+        Thread reconfigure = new Thread(new Runnable() {
+            public void run() {
+                for (int i = 0; i < 20; i++) {
+                    executor.configure(2 + i % 2, false, 64);
+                    try {
+                        Thread.sleep(2);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        });
+        reconfigure.start();
+        for (int round = 0; round < 5; round++) {
+            List<Integer> results = executor.invokeAll(tasks(20, new AtomicInteger(), new AtomicInteger()));
+            assertEquals(20, results.size());
+            for (int i = 0; i < 20; i++) {
+                assertEquals(i, (int) results.get(i));
+            }
+        }
+        reconfigure.join();
+    }
+
+    @Test
+    public void requestsInFlightAreBounded() throws Exception {
+        assertInFlightBounded(false);
+    }
+
+    /**
+     * Before Java 21 this falls back to the pool, and so tests the same as {@link #requestsInFlightAreBounded}.
+     */
+    @Test
+    public void requestsInFlightAreBoundedWhenVirtualThreadsAreAskedFor() throws Exception {
+        assertInFlightBounded(true);
+    }
+
+    private static void assertInFlightBounded(boolean virtualThreads) throws Exception {
+        final DeliveryExecutor executor = DeliveryExecutor.get();
+        executor.configure(16, virtualThreads, 3);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger peak = new AtomicInteger();
+        List<Thread> callers = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            Thread caller = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        executor.invokeAll(inFlight(executor, tasks(10, running, peak)));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            caller.start();
+            callers.add(caller);
+        }
+        for (Thread caller : callers) {
+            caller.join();
+        }
+        assertTrue("peak " + peak.get(), peak.get() <= 3);
+        assertEquals(0, running.get());
+    }
+
+    /**
+     * Has each task take an in-flight slot, as a room request does once it is within its rate limits.
+     */
+    private static List<Callable<Integer>> inFlight(final DeliveryExecutor executor, List<Callable<Integer>> tasks) {
+        List<Callable<Integer>> limited = new ArrayList<Callable<Integer>>();
+        for (final Callable<Integer> task : tasks) {
+            limited.add(new Callable<Integer>() {
+                public Integer call() throws Exception {
+                    Semaphore slot = executor.acquireInFlight(10000);
+                    try {
+                        return task.call();
+                    } finally {
+                        slot.release();
+                    }
+                }
+            });
+        }
+        return limited;
+    }
+
+    private static List<Callable<Integer>> tasks(int count, final AtomicInteger running, final AtomicInteger peak) {
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        for (int i = 0; i < count; i++) {
+            final int n = i;
+            tasks.add(new Callable<Integer>() {
+                public Integer call() throws Exception {
+                    int now = running.incrementAndGet();
+                    synchronized (peak) {
+                        peak.set(Math.max(peak.get(), now));
+                    }
+                    Thread.sleep(5);
+                    running.decrementAndGet();
+                    return n;
+                }
+            });
+        }
+        return tasks;
+    }
+}
@@ -0,0 +1,101 @@
+package jenkins.plugins.hipchat;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HipChatDispatcherTest {
+
+    private final HipChatDispatcher dispatcher = new HipChatDispatcher();
+
+    @After
+    public void shutdown() {
+        dispatcher.shutdown(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void runsTasksWithTheSameKeyInOrder() throws Exception {
+        dispatcher.configure(4, 100, HipChatDispatcher.OverflowPolicy.CALLER_RUNS);
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(200);
+        for (int i = 0; i < 200; i++) {
+            final int n = i;
+            dispatcher.execute("job#1", new Runnable() {
+                public void run() {
+                    if (n % 7 == 0) {
+                        Thread.yield();
+                    }
+                    order.add(n);
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 200; i++) {
+            assertEquals(Integer.valueOf(i), order.get(i));
+        }
+    }
+
+    @Test
+    public void runsDifferentKeysConcurrently() throws Exception {
+        dispatcher.configure(2, 100, HipChatDispatcher.OverflowPolicy.CALLER_RUNS);
+        final CountDownLatch bothRunning = new CountDownLatch(2);
+        final CountDownLatch done = new CountDownLatch(2);
+        for (String key : new String[]{"job#1", "job#2"}) {
+            dispatcher.execute(key, new Runnable() {
+                public void run() {
+                    bothRunning.countDown();
+                    try {
+                        if (bothRunning.await(10, TimeUnit.SECONDS)) {
+                            done.countDown();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void taskForSeveralKeysRunsAfterEachKeysEarlierTasks() throws Exception {
+        dispatcher.configure(4, 100, HipChatDispatcher.OverflowPolicy.CALLER_RUNS);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        for (final String key : new String[]{"job#1", "job#2"}) {
+            dispatcher.execute(key, new Runnable() {
+                public void run() {
+                    try {
+                        release.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    order.add(key);
+                }
+            });
+        }
+        dispatcher.execute(Arrays.asList("job#1", "job#2", "job#1"), new Runnable() {
+            public void run() {
+                order.add("digest");
+                done.countDown();
+            }
+        });
+        Thread.sleep(100);
+        assertTrue(order.isEmpty());
+        release.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(3, order.size());
+        assertEquals("digest", order.get(2));
+    }
+}
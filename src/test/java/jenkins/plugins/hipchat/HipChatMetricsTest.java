@@ -0,0 +1,68 @@
+package jenkins.plugins.hipchat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HipChatMetricsTest {
+
+    private final HipChatMetrics metrics = HipChatMetrics.get();
+
+    @Test
+    public void successIsCountedAsSentWithItsLatency() throws Exception {
+        HipChatStubServer server = new HipChatStubServer();
+        try {
+            long sent = metrics.getSent();
+            long failed = metrics.getFailed();
+            long latencies = metrics.getLatency().getCount();
+            RoomDeliveryResult result = service(server, "metrics-sent-token", "metrics-sent-room")
+                    .deliverToRoom("metrics-sent-room", "message", "green");
+            assertTrue(result.isSuccess());
+            assertEquals(sent + 1, metrics.getSent());
+            assertEquals(failed, metrics.getFailed());
+            assertEquals(latencies + 1, metrics.getLatency().getCount());
+            assertTrue(metrics.getRoomLatencyMillis("metrics-sent-room", 50) >= 0);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void retriesAreCountedAndGivingUpOnceAsFailed() throws Exception {
+        HipChatStubServer server = new HipChatStubServer().setThrottledRoom("metrics-retry-room", 1);
+        HipChatRateLimiter.get().configure(HipChatRateLimiter.DEFAULT_TOKEN_REQUESTS, HipChatRateLimiter.DEFAULT_ROOM_REQUESTS, 1);
+        try {
+            long sent = metrics.getSent();
+            long failed = metrics.getFailed();
+            long retried = metrics.getRetried();
+            service(server, "metrics-retry-token", "metrics-retry-room").deliver("message", "green");
+            long deadline = System.currentTimeMillis() + 10000;
+            while (metrics.getFailed() == failed && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assertEquals(2, server.getRequestCount());
+            assertEquals(retried + 1, metrics.getRetried());
+            assertEquals(failed + 1, metrics.getFailed());
+            assertEquals(sent, metrics.getSent());
+        } finally {
+            HipChatRateLimiter.get().configure(HipChatRateLimiter.DEFAULT_TOKEN_REQUESTS, HipChatRateLimiter.DEFAULT_ROOM_REQUESTS,
+                    HipChatRateLimiter.DEFAULT_MAX_RETRIES);
+            server.stop();
+        }
+    }
+
+    @Test
+    public void entryGivenUpByTheOutboxIsCountedAsFailed() {
+        long failed = metrics.getFailed();
+        metrics.gaveUp();
+        assertEquals(failed + 1, metrics.getFailed());
+    }
+
+    private static StandardHipChatService service(HipChatStubServer server, String token, String room) {
+        StandardHipChatService service = new StandardHipChatService(token, room, "from");
+        service.setProtocol("http");
+        service.setHost(server.getHost());
+        return service;
+    }
+}
@@ -0,0 +1,48 @@
+package jenkins.plugins.hipchat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HipChatOutboxTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void roomThrottledByHipChatDoesNotHoldUpOtherRooms() throws Exception {
+        HipChatStubServer server = new HipChatStubServer().setThrottledRoom("busy-room", 60);
+        HipChatApi.setEndpoint("http", server.getHost());
+        HipChatOutbox outbox = HipChatOutbox.get();
+        outbox.open(new OutboxJournal(folder.getRoot()));
+        try {
+            outbox.enqueue(entry("job#1:started:1000", "busy-room"));
+            for (int i = 1; i <= 3; i++) {
+                outbox.enqueue(entry("job#" + i + ":started:1000", "quiet-room"));
+            }
+            long deadline = System.currentTimeMillis() + 10000;
+            while (server.getMessageCount() < 3 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assertEquals(3, server.getMessageCount());
+            // held back by the Retry-After from then on, without asking HipChat again
+            assertEquals(4, server.getRequestCount());
+            assertTrue(outbox.getPendingBytes() > 0);
+        } finally {
+            outbox.shutdown();
+            HipChatApi.setEndpoint(null, null);
+            server.stop();
+        }
+    }
+
+    /**
+     * An entry with a token of the room's own, as a Retry-After holds back the whole token.
+     */
+    private static OutboxEntry entry(String messageKey, String room) {
+        return new OutboxEntry(messageKey + "@" + room, room + "-token", room, "Build Server", "message", "green",
+                System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,53 @@
+package jenkins.plugins.hipchat;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HipChatResponseTest {
+
+    @Test
+    public void classifiesErrorResponses() {
+        assertEquals(DeliveryFailure.BAD_TOKEN, HipChatResponse.classify(401,
+                "{\"error\":{\"code\":401,\"type\":\"Unauthorized\",\"message\":\"Auth token not found.\"}}"));
+        assertEquals(DeliveryFailure.ROOM_NOT_FOUND, HipChatResponse.classify(404,
+                "{\"error\":{\"code\":404,\"type\":\"Not Found\",\"message\":\"Room not found\"}}"));
+        assertEquals(DeliveryFailure.RATE_LIMITED, HipChatResponse.classify(429, null));
+        assertEquals(DeliveryFailure.UNAVAILABLE, HipChatResponse.classify(503, "<html>Service Unavailable</html>"));
+        assertEquals(DeliveryFailure.REJECTED, HipChatResponse.classify(500,
+                "{\"error\":{\"code\":500,\"type\":\"Internal Server Error\"}}"));
+    }
+
+    @Test
+    public void v1ForbiddenIsRateLimitedOnlyWhenTheBodySaysSo() {
+        assertEquals(DeliveryFailure.RATE_LIMITED, HipChatResponse.classify(403,
+                "{\"error\":{\"code\":403,\"type\":\"Forbidden\",\"message\":\"You have exceeded the rate limit.\"}}"));
+        assertEquals(DeliveryFailure.BAD_TOKEN, HipChatResponse.classify(403,
+                "{\"error\":{\"code\":403,\"type\":\"Forbidden\",\"message\":\"Token does not have access.\"}}"));
+    }
+
+    @Test
+    public void onlyRateLimitsAndOutagesAreRetried() {
+        assertTrue(DeliveryFailure.RATE_LIMITED.isRetryable());
+        assertTrue(DeliveryFailure.UNAVAILABLE.isRetryable());
+        assertFalse(DeliveryFailure.BAD_TOKEN.isRetryable());
+        assertFalse(DeliveryFailure.ROOM_NOT_FOUND.isRetryable());
+        assertFalse(DeliveryFailure.REJECTED.isRetryable());
+    }
+
+    @Test
+    public void readsNoMoreThanTheBuffer() throws Exception {
+        InputStream in = new ByteArrayInputStream(new byte[5000]);
+        byte[] head = new byte[HipChatResponse.MAX_BODY_BYTES];
+        assertEquals(HipChatResponse.MAX_BODY_BYTES, HipChatResponse.readHead(in, head));
+        assertEquals(5000 - HipChatResponse.MAX_BODY_BYTES, in.available());
+
+        byte[] sent = "{\"status\":\"sent\"}".getBytes("UTF-8");
+        assertEquals(sent.length, HipChatResponse.readHead(new ByteArrayInputStream(sent), head));
+    }
+}
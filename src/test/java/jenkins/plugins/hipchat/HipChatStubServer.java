@@ -0,0 +1,224 @@
+package jenkins.plugins.hipchat;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process stand-in for the HipChat message API: {@code /v1/rooms/message} and
+ * {@code /v2/room/{room}/notification}. Point a {@link StandardHipChatService} at it with
+ * {@code setProtocol("http")} and {@code setHost(server.getHost())}.
+ * <p>
+ * Every post is accepted unless told otherwise: responses can be delayed, a share of them can fail
+ * with 500 or be throttled with 429, as can all posts to one room, and bodies can be sent a byte at
+ * a time.
+ */
+public class HipChatStubServer {
+
+    private static final byte[] SENT = "{\"status\":\"sent\"}".getBytes();
+    private static final byte[] ERROR = "{\"error\":{\"code\":500,\"type\":\"Internal Server Error\"}}".getBytes();
+    private static final byte[] THROTTLED = "{\"error\":{\"code\":429,\"type\":\"Too Many Requests\"}}".getBytes();
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Random random = new Random();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger messages = new AtomicInteger();
+    private final List<String> texts = Collections.synchronizedList(new ArrayList<String>());
+
+    private volatile long latencyMillis;
+    private volatile double errorRate;
+    private volatile double throttleRate;
+    private volatile int retryAfterSeconds = 1;
+    private volatile long dripMillisPerByte;
+    private volatile String throttledRoom;
+
+    public HipChatStubServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v1/rooms/message", new MessageHandler(200, SENT));
+        server.createContext("/v2/room/", new MessageHandler(204, null));
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    public String getHost() {
+        return "127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * Messages accepted so far.
+     */
+    public int getMessageCount() {
+        return messages.get();
+    }
+
+    /**
+     * The text of the v1 messages accepted so far, in the order they arrived.
+     */
+    public List<String> getMessages() {
+        synchronized (texts) {
+            return new ArrayList<String>(texts);
+        }
+    }
+
+    /**
+     * Posts received so far, including the ones answered with an error.
+     */
+    public int getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * Delays every response by the given time.
+     */
+    public HipChatStubServer setLatency(long millis) {
+        this.latencyMillis = millis;
+        return this;
+    }
+
+    /**
+     * Answers the given share of posts, between 0 and 1, with 500.
+     */
+    public HipChatStubServer setErrorRate(double rate) {
+        this.errorRate = rate;
+        return this;
+    }
+
+    /**
+     * Answers the given share of posts, between 0 and 1, with 429 and a {@code Retry-After} header.
+     */
+    public HipChatStubServer setThrottleRate(double rate, int retryAfterSeconds) {
+        this.throttleRate = rate;
+        this.retryAfterSeconds = retryAfterSeconds;
+        return this;
+    }
+
+    /**
+     * Answers every post to the given room with 429 and a {@code Retry-After} header.
+     */
+    public HipChatStubServer setThrottledRoom(String room, int retryAfterSeconds) {
+        this.throttledRoom = room;
+        this.retryAfterSeconds = retryAfterSeconds;
+        return this;
+    }
+
+    /**
+     * Writes response bodies one byte at a time, pausing between bytes.
+     */
+    public HipChatStubServer setSlowDrip(long millisPerByte) {
+        this.dripMillisPerByte = millisPerByte;
+        return this;
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private class MessageHandler implements HttpHandler {
+        private final int sentCode;
+        private final byte[] sentBody;
+
+        MessageHandler(int sentCode, byte[] sentBody) {
+            this.sentCode = sentCode;
+            this.sentBody = sentBody;
+        }
+
+        public void handle(HttpExchange exchange) throws IOException {
+            String body = read(exchange.getRequestBody());
+            String room = getRoom(exchange.getRequestURI().getPath(), body);
+            requests.incrementAndGet();
+            try {
+                if (latencyMillis > 0) {
+                    Thread.sleep(latencyMillis);
+                }
+                double roll;
+                synchronized (random) {
+                    roll = random.nextDouble();
+                }
+                exchange.getResponseHeaders().add("Content-Type", "application/json");
+                if (roll < throttleRate || room != null && room.equals(throttledRoom)) {
+                    exchange.getResponseHeaders().add("Retry-After", String.valueOf(retryAfterSeconds));
+                    respond(exchange, 429, THROTTLED);
+                } else if (roll < throttleRate + errorRate) {
+                    respond(exchange, 500, ERROR);
+                } else {
+                    messages.incrementAndGet();
+                    String text = getParameter(body, "message");
+                    if (text != null) {
+                        texts.add(text);
+                    }
+                    respond(exchange, sentCode, sentBody);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private void respond(HttpExchange exchange, int code, byte[] body) throws IOException, InterruptedException {
+            if (body == null) {
+                exchange.sendResponseHeaders(code, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(code, body.length);
+            OutputStream out = exchange.getResponseBody();
+            if (dripMillisPerByte > 0) {
+                for (byte b : body) {
+                    out.write(b);
+                    out.flush();
+                    Thread.sleep(dripMillisPerByte);
+                }
+            } else {
+                out.write(body);
+            }
+            out.close();
+        }
+    }
+
+    /**
+     * The room a post is for: part of the path for v2, the {@code room_id} parameter for v1.
+     */
+    private static String getRoom(String path, String body) throws IOException {
+        if (path.startsWith("/v2/room/")) {
+            String rest = path.substring("/v2/room/".length());
+            return URLDecoder.decode(rest.substring(0, Math.max(0, rest.indexOf('/'))), "UTF-8");
+        }
+        return getParameter(body, "room_id");
+    }
+
+    private static String getParameter(String body, String name) throws IOException {
+        for (String parameter : body.split("&")) {
+            if (parameter.startsWith(name + "=")) {
+                return URLDecoder.decode(parameter.substring(name.length() + 1), "UTF-8");
+            }
+        }
+        return null;
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            bytes.write(buffer, 0, n);
+        }
+        in.close();
+        return bytes.toString("UTF-8");
+    }
+}
@@ -0,0 +1,86 @@
+package jenkins.plugins.hipchat;
+
+import hudson.model.Result;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JobNotificationStatesTest {
+
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void onlyTransitionsAreReportedWithoutRepeats() {
+        JobNotificationStates states = new JobNotificationStates(null);
+
+        assertTrue(states.shouldNotify("job", 1, Result.FAILURE, true, 0, 0, 0));
+        assertFalse(states.shouldNotify("job", 2, Result.FAILURE, true, 0, 0, MINUTE));
+        assertFalse(states.shouldNotify("job", 3, Result.FAILURE, true, 0, 0, 100 * MINUTE));
+        assertTrue(states.shouldNotify("job", 4, Result.SUCCESS, true, 0, 0, 101 * MINUTE));
+        assertTrue(states.shouldNotify("job", 5, Result.FAILURE, true, 0, 0, 102 * MINUTE));
+    }
+
+    @Test
+    public void unwantedResultsStillCountAsTheLastResult() {
+        JobNotificationStates states = new JobNotificationStates(null);
+
+        assertTrue(states.shouldNotify("job", 1, Result.FAILURE, true, 0, 0, 0));
+        assertFalse(states.shouldNotify("job", 2, Result.SUCCESS, false, 0, 0, 0));
+        assertTrue(states.shouldNotify("job", 3, Result.FAILURE, true, 0, 0, 0));
+    }
+
+    @Test
+    public void unchangedStatusIsRepeatedEveryNBuilds() {
+        JobNotificationStates states = new JobNotificationStates(null);
+
+        assertTrue(states.shouldNotify("job", 1, Result.FAILURE, true, 3, 0, 0));
+        assertFalse(states.shouldNotify("job", 2, Result.FAILURE, true, 3, 0, 0));
+        assertFalse(states.shouldNotify("job", 3, Result.FAILURE, true, 3, 0, 0));
+        assertTrue(states.shouldNotify("job", 4, Result.FAILURE, true, 3, 0, 0));
+        assertFalse(states.shouldNotify("job", 5, Result.FAILURE, true, 3, 0, 0));
+    }
+
+    @Test
+    public void unchangedStatusIsRepeatedAfterMinutes() {
+        JobNotificationStates states = new JobNotificationStates(null);
+
+        assertTrue(states.shouldNotify("job", 1, Result.FAILURE, true, 0, 30, 0));
+        assertFalse(states.shouldNotify("job", 2, Result.FAILURE, true, 0, 30, 29 * MINUTE));
+        assertTrue(states.shouldNotify("job", 3, Result.FAILURE, true, 0, 30, 30 * MINUTE));
+        assertFalse(states.shouldNotify("job", 4, Result.FAILURE, true, 0, 30, 31 * MINUTE));
+    }
+
+    @Test
+    public void statesSurviveSaveAndReload() throws Exception {
+        File file = new File(folder.getRoot(), JobNotificationStates.FILE_NAME);
+        JobNotificationStates states = new JobNotificationStates(file);
+        states.shouldNotify("folder/job", 7, Result.FAILURE, true, 0, 0, 0);
+        states.shouldNotify("other", 1, Result.SUCCESS, true, 0, 0, 0);
+        states.rename("other", "renamed");
+        states.saveNow();
+
+        JobNotificationStates reloaded = new JobNotificationStates(file);
+        assertEquals(2, reloaded.size());
+        assertFalse(reloaded.shouldNotify("folder/job", 8, Result.FAILURE, true, 0, 0, MINUTE));
+        assertFalse(reloaded.shouldNotify("renamed", 2, Result.SUCCESS, true, 0, 0, MINUTE));
+    }
+
+    @Test
+    public void unreadableFileIsIgnored() throws Exception {
+        File file = folder.newFile(JobNotificationStates.FILE_NAME);
+
+        JobNotificationStates states = new JobNotificationStates(file);
+        assertEquals(0, states.size());
+        assertTrue(states.shouldNotify("job", 1, Result.FAILURE, true, 0, 0, 0));
+    }
+}
@@ -0,0 +1,38 @@
+package jenkins.plugins.hipchat;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertEquals;
+
+public class JsonRequestEntityTest {
+
+    @Test
+    public void writesFlatObject() {
+        JsonRequestEntity entity = JsonRequestEntity.begin().field("from", "Build Server").field("notify", false).end();
+        assertEquals("{\"from\":\"Build Server\",\"notify\":false}", entity.toString());
+    }
+
+    @Test
+    public void escapesStrings() {
+        JsonRequestEntity entity = JsonRequestEntity.begin().field("message", "say \"hi\"\\\n\t\u0001").end();
+        assertEquals("{\"message\":\"say \\\"hi\\\"\\\\\\n\\t\\u0001\"}", entity.toString());
+    }
+
+    @Test
+    public void encodesUtf8() throws Exception {
+        String message = "café € 😀";
+        JsonRequestEntity entity = JsonRequestEntity.begin().field("message", message).end();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        entity.writeRequest(out);
+        assertEquals("{\"message\":\"" + message + "\"}", new String(out.toByteArray(), "UTF-8"));
+        assertEquals(out.size(), entity.getContentLength());
+    }
+
+    @Test
+    public void reusesBufferAcrossRequests() {
+        JsonRequestEntity.begin().field("message", "a much longer message than the next one").end();
+        assertEquals("{\"a\":\"b\"}", JsonRequestEntity.begin().field("a", "b").end().toString());
+    }
+}
@@ -0,0 +1,47 @@
+package jenkins.plugins.hipchat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void emptyHistogramReportsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMean());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(50));
+    }
+
+    @Test
+    public void percentileIsTheUpperBoundOfItsPowerOfTwoBucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(0);
+        assertEquals(0, histogram.getPercentile(100));
+        histogram.record(2);
+        histogram.record(3);
+        histogram.record(5);
+        // 0 | 2, 3 | 5: the median falls in the bucket for 2-3, the slowest in the one for 4-7 capped at the max
+        assertEquals(3, histogram.getPercentile(50));
+        assertEquals(3, histogram.getPercentile(75));
+        assertEquals(5, histogram.getPercentile(100));
+        histogram.record(1000);
+        assertEquals(1000, histogram.getPercentile(99));
+        assertEquals(1000, histogram.getMax());
+    }
+
+    @Test
+    public void countsMeanAndPercentilesOverAnEvenSpread() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int millis = 1; millis <= 100; millis++) {
+            histogram.record(millis);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(50, histogram.getMean());
+        assertEquals(100, histogram.getMax());
+        assertEquals(63, histogram.getPercentile(50));
+        assertEquals(100, histogram.getPercentile(99));
+    }
+}
@@ -0,0 +1,37 @@
+package jenkins.plugins.hipchat;
+
+import hudson.model.Result;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MatrixSummaryTest {
+
+    @Test
+    public void passingConfigurationsAreOnlyCounted() {
+        MatrixSummary summary = new MatrixSummary()
+                .add("jdk=6", Result.SUCCESS)
+                .add("jdk=7", Result.SUCCESS);
+
+        assertEquals("2 of 2 configurations passed.", summary.toString());
+    }
+
+    @Test
+    public void otherConfigurationsAreNamedWorstFirst() {
+        MatrixSummary summary = new MatrixSummary()
+                .add("jdk=6,os=linux", Result.UNSTABLE)
+                .add("jdk=7,os=linux", Result.SUCCESS)
+                .add("jdk=6,os=win", Result.FAILURE)
+                .add("jdk=7,os=win", Result.FAILURE)
+                .add("jdk=8,os=win", null);
+
+        assertEquals("1 of 5 configurations passed. FAILURE: jdk=6,os=win, jdk=7,os=win UNSTABLE: jdk=6,os=linux"
+                + " Other: jdk=8,os=win", summary.toString());
+    }
+
+    @Test
+    public void emptyMatrix() {
+        assertTrue(new MatrixSummary().isEmpty());
+    }
+}
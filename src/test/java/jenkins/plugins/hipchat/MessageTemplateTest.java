@@ -0,0 +1,54 @@
+package jenkins.plugins.hipchat;
+
+import org.junit.Test;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MessageTemplateTest {
+
+    private final MessageFields fields = new MessageFields() {
+        private final Map<MessageTemplate.Field, String> values = new EnumMap<MessageTemplate.Field, String>(MessageTemplate.Field.class);
+
+        {
+            values.put(MessageTemplate.Field.PROJECT, "hipchat-plugin");
+            values.put(MessageTemplate.Field.BUILD, "#42");
+            values.put(MessageTemplate.Field.STATUS, "Success");
+            values.put(MessageTemplate.Field.DURATION, "1 min 3 sec");
+            values.put(MessageTemplate.Field.URL, "http://jenkins/job/hipchat-plugin/42/");
+        }
+
+        public String get(MessageTemplate.Field field) {
+            return values.get(field);
+        }
+    };
+
+    @Test
+    public void defaultCompletedTemplateMatchesLegacyLayout() {
+        assertEquals("hipchat-plugin - #42 Success after 1 min 3 sec (<a href='http://jenkins/job/hipchat-plugin/42/'>Open</a>)",
+                MessageTemplate.compile(MessageTemplate.DEFAULT_COMPLETED).render(fields));
+    }
+
+    @Test
+    public void unknownAndUnterminatedPlaceholdersAreKept() {
+        assertEquals("${nope} #42 ${build", MessageTemplate.parse("${nope} ${build} ${build").render(fields));
+    }
+
+    @Test
+    public void reportsWhichFieldsAreUsed() {
+        MessageTemplate template = MessageTemplate.parse("${project}: ${ status }");
+        assertTrue(template.uses(MessageTemplate.Field.STATUS));
+        assertFalse(template.uses(MessageTemplate.Field.AUTHORS));
+        assertEquals("hipchat-plugin: Success", template.render(fields));
+    }
+
+    @Test
+    public void compiledTemplatesAreCached() {
+        assertSame(MessageTemplate.compile("${project}"), MessageTemplate.compile("${project}"));
+    }
+}
@@ -0,0 +1,124 @@
+package jenkins.plugins.hipchat;
+
+import hudson.model.Result;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NotificationCoalescerTest {
+
+    private final NotificationCoalescer coalescer = NotificationCoalescer.get();
+    private HipChatStubServer server;
+
+    @Before
+    public void startServer() throws Exception {
+        server = new HipChatStubServer();
+        HipChatApi.setEndpoint("http", server.getHost());
+    }
+
+    @After
+    public void stopServer() {
+        coalescer.configure(0, NotificationCoalescer.DEFAULT_MAX_MESSAGES, true);
+        HipChatApi.setEndpoint(null, null);
+        server.stop();
+    }
+
+    @Test
+    public void digestIsSentWhenTheWindowCloses() throws Exception {
+        coalescer.configure(1, 10, true);
+        DeliveryTarget target = new DeliveryTarget("window-token", "room", "Build Server");
+        add(target, 1, Result.SUCCESS, "green");
+        add(target, 2, Result.UNSTABLE, "yellow");
+        Thread.sleep(500);
+        assertEquals(0, server.getMessageCount());
+
+        List<String> messages = awaitMessages(1);
+        assertEquals(1, messages.size());
+        assertTrue(messages.get(0), messages.get(0).startsWith("2 builds: 1 success, 1 unstable"));
+    }
+
+    @Test
+    public void digestIsSentOnceFull() throws Exception {
+        coalescer.configure(60, 3, true);
+        DeliveryTarget target = new DeliveryTarget("full-token", "room", "Build Server");
+        for (int i = 1; i <= 4; i++) {
+            add(target, i, Result.SUCCESS, "green");
+        }
+
+        List<String> messages = awaitMessages(1);
+        assertEquals(1, messages.size());
+        assertTrue(messages.get(0), messages.get(0).startsWith("3 builds: 3 success"));
+    }
+
+    @Test
+    public void failureSkipsTheWindow() throws Exception {
+        coalescer.configure(60, 10, true);
+        DeliveryTarget target = new DeliveryTarget("failure-token", "room", "Build Server");
+        add(target, 1, Result.SUCCESS, "green");
+        add(target, 2, Result.FAILURE, "red");
+
+        assertEquals(Arrays.asList("job #2 failure"), awaitMessages(1));
+    }
+
+    @Test
+    public void pendingDigestsAreSentWhenCoalescingIsSwitchedOff() throws Exception {
+        coalescer.configure(60, 10, true);
+        DeliveryTarget target = new DeliveryTarget("disable-token", "room", "Build Server");
+        add(target, 1, Result.SUCCESS, "green");
+        add(target, 2, Result.SUCCESS, "green");
+        coalescer.configure(0, 10, true);
+
+        List<String> messages = awaitMessages(1);
+        assertEquals(1, messages.size());
+        assertTrue(messages.get(0), messages.get(0).startsWith("2 builds: 2 success"));
+    }
+
+    @Test
+    public void digestCountsResultsAndLinksEachBuild() {
+        List<NotificationCoalescer.Entry> entries = Arrays.asList(
+                entry(1, Result.SUCCESS, "green", "https://jenkins/job/a/1/"),
+                entry(2, Result.FAILURE, "red", "https://jenkins/job/a/2/"),
+                entry(3, Result.SUCCESS, "green", null));
+
+        assertEquals("3 builds: 2 success, 1 failure"
+                + "<br/><a href='https://jenkins/job/a/1/'>job #1</a> success"
+                + "<br/><a href='https://jenkins/job/a/2/'>job #2</a> failure"
+                + "<br/>job #3 success", NotificationCoalescer.getMessage(entries));
+    }
+
+    @Test
+    public void digestTakesTheColorOfItsWorstResult() {
+        assertEquals("green", NotificationCoalescer.getColor(Arrays.asList(
+                entry(1, Result.SUCCESS, "green", null), entry(2, Result.SUCCESS, "green", null))));
+        assertEquals("yellow", NotificationCoalescer.getColor(Arrays.asList(
+                entry(1, Result.UNSTABLE, "yellow", null), entry(2, Result.SUCCESS, "green", null))));
+        assertEquals("red", NotificationCoalescer.getColor(Arrays.asList(
+                entry(1, Result.UNSTABLE, "yellow", null), entry(2, Result.FAILURE, "red", null))));
+    }
+
+    private void add(DeliveryTarget target, int number, Result result, String color) {
+        coalescer.add(target, "job#" + number + ":completed:1000", "job#" + number,
+                result, "job #" + number + " " + result.toString().toLowerCase(), color, "job #" + number, null);
+    }
+
+    private List<String> awaitMessages(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (server.getMessageCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        // anything more would have arrived by now
+        Thread.sleep(200);
+        return server.getMessages();
+    }
+
+    private static NotificationCoalescer.Entry entry(int number, Result result, String color, String url) {
+        return new NotificationCoalescer.Entry("job#" + number + ":completed:1000", "job#" + number, result,
+                "job #" + number + " " + result.toString().toLowerCase(), color, "job #" + number, url);
+    }
+}
@@ -0,0 +1,69 @@
+package jenkins.plugins.hipchat;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Iterator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class NotifierCacheTest {
+
+    @Test
+    public void notifierIsLookedUpOnce() {
+        NotifierCache cache = new NotifierCache();
+        FineGrainedNotifier first = cache.getNotifier("folder/job", Collections.emptyList());
+        assertSame(DisabledNotifier.INSTANCE, first);
+        assertSame(first, cache.getNotifier("folder/job", new FailingPublishers()));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void invalidatingAProjectDropsTheItemsWithinIt() {
+        NotifierCache cache = new NotifierCache();
+        cache.getNotifier("matrix", Collections.emptyList());
+        cache.getNotifier("matrix/axis=a", Collections.emptyList());
+        cache.getNotifier("matrix-other", Collections.emptyList());
+
+        cache.invalidate("matrix");
+
+        assertEquals(1, cache.size());
+        assertSame(DisabledNotifier.INSTANCE, cache.getNotifier("matrix-other", new FailingPublishers()));
+    }
+
+    @Test
+    public void lookupRacingWithAnInvalidationIsNotKept() {
+        final NotifierCache cache = new NotifierCache();
+        Iterable<Object> publishers = new Iterable<Object>() {
+            public Iterator<Object> iterator() {
+                // the configuration is saved while the old publisher list is being read
+                cache.invalidate("job");
+                return Collections.emptyList().iterator();
+            }
+        };
+
+        assertSame(DisabledNotifier.INSTANCE, cache.getNotifier("job", publishers));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void lookupRacingWithAClearIsNotKept() {
+        final NotifierCache cache = new NotifierCache();
+        Iterable<Object> publishers = new Iterable<Object>() {
+            public Iterator<Object> iterator() {
+                cache.clear();
+                return Collections.emptyList().iterator();
+            }
+        };
+
+        cache.getNotifier("job", publishers);
+        assertEquals(0, cache.size());
+    }
+
+    private static final class FailingPublishers implements Iterable<Object> {
+        public Iterator<Object> iterator() {
+            throw new AssertionError("the publisher list should not be read again");
+        }
+    }
+}
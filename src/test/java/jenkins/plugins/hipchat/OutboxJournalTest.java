@@ -0,0 +1,142 @@
+package jenkins.plugins.hipchat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OutboxJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void entriesAreReturnedInOrderUntilAcknowledged() throws Exception {
+        OutboxJournal journal = new OutboxJournal(folder.getRoot());
+        journal.append(entry("job#1:completed@room"));
+        journal.append(entry("job#2:completed@room"));
+
+        assertEquals("job#1:completed@room", journal.peek().key);
+        assertEquals("job#1:completed@room", journal.peek().key);
+        journal.ack(journal.peek());
+        assertEquals("job#2:completed@room", journal.peek().key);
+        journal.ack(journal.peek());
+        assertNull(journal.peek());
+        journal.close();
+    }
+
+    @Test
+    public void pendingEntriesSurviveReopen() throws Exception {
+        OutboxJournal journal = new OutboxJournal(folder.getRoot());
+        journal.append(entry("job#1:completed@room"));
+        journal.append(entry("job#2:completed@room"));
+        journal.ack(journal.peek());
+        journal.close();
+
+        journal = new OutboxJournal(folder.getRoot());
+        assertEquals("job#2:completed@room", journal.peek().key);
+        assertTrue(journal.isDelivered("job#1:completed@room"));
+        assertFalse(journal.isDelivered("job#2:completed@room"));
+        journal.close();
+    }
+
+    @Test
+    public void tornRecordIsCutOffOnReopen() throws Exception {
+        OutboxJournal journal = new OutboxJournal(folder.getRoot());
+        journal.append(entry("job#1:completed@room"));
+        journal.close();
+
+        File segment = null;
+        for (File file : folder.getRoot().listFiles()) {
+            if (file.getName().endsWith(".seg")) {
+                segment = file;
+            }
+        }
+        RandomAccessFile raw = new RandomAccessFile(segment, "rw");
+        raw.seek(raw.length());
+        raw.write(new byte[]{0, 0, 1, 0, 42});
+        raw.close();
+
+        journal = new OutboxJournal(folder.getRoot());
+        journal.ack(journal.peek());
+        assertNull(journal.peek());
+        journal.append(entry("job#2:completed@room"));
+        assertEquals("job#2:completed@room", journal.peek().key);
+        journal.close();
+    }
+
+    @Test
+    public void deliveredSegmentsAreDeleted() throws Exception {
+        OutboxJournal journal = new OutboxJournal(folder.getRoot(), 200);
+        for (int i = 0; i < 10; i++) {
+            journal.append(entry("job#" + i + ":completed@room"));
+        }
+        assertTrue(segmentCount() > 1);
+        for (int i = 0; i < 10; i++) {
+            journal.ack(journal.peek());
+        }
+        assertNull(journal.peek());
+        assertEquals(1, segmentCount());
+        assertEquals(0, journal.getPendingBytes());
+        journal.close();
+    }
+
+    @Test
+    public void skippedRoomsAreLookedPastAndEntriesAcknowledgedOutOfOrderAreNotRepeated() throws Exception {
+        OutboxJournal journal = new OutboxJournal(folder.getRoot(), 200);
+        journal.append(entry("job#1:completed@busy", "busy"));
+        journal.append(entry("job#2:completed@quiet", "quiet"));
+        journal.append(entry("job#3:completed@busy", "busy"));
+        journal.append(entry("job#4:completed@quiet", "quiet"));
+        Set<String> busy = Collections.singleton("busy");
+
+        assertEquals("job#2:completed@quiet", journal.peek(busy).key);
+        journal.ack(journal.peek(busy));
+        assertEquals("job#4:completed@quiet", journal.peek(busy).key);
+        journal.ack(journal.peek(busy));
+        assertNull(journal.peek(busy));
+        journal.append(entry("job#5:completed@quiet", "quiet"));
+        assertEquals("job#5:completed@quiet", journal.peek(busy).key);
+
+        assertEquals("job#1:completed@busy", journal.peek().key);
+        journal.ack(journal.peek());
+        assertEquals("job#3:completed@busy", journal.peek().key);
+        journal.close();
+
+        journal = new OutboxJournal(folder.getRoot(), 200);
+        assertEquals("job#3:completed@busy", journal.peek().key);
+        journal.ack(journal.peek());
+        // acknowledged out of order, so replayed after a restart, but known as delivered
+        assertEquals("job#4:completed@quiet", journal.peek().key);
+        assertTrue(journal.isDelivered("job#4:completed@quiet"));
+        journal.close();
+    }
+
+    private int segmentCount() {
+        int count = 0;
+        for (File file : folder.getRoot().listFiles()) {
+            if (file.getName().endsWith(".seg")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static OutboxEntry entry(String key) {
+        return entry(key, "room");
+    }
+
+    private static OutboxEntry entry(String key, String room) {
+        return new OutboxEntry(key, "token", room, "Build Server", "job - #1 Success after 1 sec", "green",
+                System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,56 @@
+package jenkins.plugins.hipchat;
+
+import hudson.model.Result;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class PreviousResultsTest {
+
+    private final PreviousResults results = PreviousResults.get();
+
+    @Before
+    public void clear() {
+        results.clear();
+    }
+
+    @Test
+    public void unknownProjectHasNoPreviousResult() {
+        assertNull(results.lookup("job", 5));
+    }
+
+    @Test
+    public void returnsLatestCompletedBelowBuildNumber() {
+        results.record("job", 3, Result.FAILURE);
+        results.record("job", 4, Result.SUCCESS);
+        assertEquals(Result.SUCCESS, results.lookup("job", 5));
+        assertEquals(Result.FAILURE, results.lookup("job", 4));
+        assertNull(results.lookup("job", 3));
+    }
+
+    @Test
+    public void toleratesOutOfOrderCompletion() {
+        results.record("job", 7, Result.SUCCESS);
+        results.record("job", 5, Result.FAILURE);
+        assertEquals(Result.FAILURE, results.lookup("job", 6));
+        assertEquals(Result.SUCCESS, results.lookup("job", 8));
+    }
+
+    @Test
+    public void keepsOnlyTheLatestBuilds() {
+        for (int i = 1; i <= PreviousResults.DEPTH + 2; i++) {
+            results.record("job", i, Result.SUCCESS);
+        }
+        assertNull(results.lookup("job", 3));
+        assertEquals(Result.SUCCESS, results.lookup("job", 4));
+    }
+
+    @Test
+    public void invalidateForgetsProject() {
+        results.record("job", 1, Result.FAILURE);
+        results.invalidate("job");
+        assertNull(results.lookup("job", 2));
+    }
+}
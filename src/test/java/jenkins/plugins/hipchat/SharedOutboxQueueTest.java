@@ -0,0 +1,123 @@
+package jenkins.plugins.hipchat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SharedOutboxQueueTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void onlyTheLeaseHolderDrains() throws Exception {
+        File dir = folder.getRoot();
+        SharedOutboxQueue a = new SharedOutboxQueue(dir, "a", 60000);
+        SharedOutboxQueue b = new SharedOutboxQueue(dir, "b", 60000);
+        a.append(entry("job#1:completed@room", 1));
+        b.append(entry("job#2:completed@room", 2));
+
+        assertEquals("job#1:completed@room", a.peek().key);
+        assertNull(b.peek());
+        a.ack(a.peek());
+        assertEquals("job#2:completed@room", a.peek().key);
+        assertNull(b.peek());
+        a.close();
+        b.close();
+    }
+
+    @Test
+    public void releasedLeaseIsTakenOverWithoutRepeatingDeliveries() throws Exception {
+        File dir = folder.getRoot();
+        SharedOutboxQueue a = new SharedOutboxQueue(dir, "a", 60000);
+        SharedOutboxQueue b = new SharedOutboxQueue(dir, "b", 60000);
+        a.append(entry("job#1:completed@room", 1));
+        a.append(entry("job#2:completed@room", 2));
+        a.ack(a.peek());
+        assertEquals("job#2:completed@room", a.peek().key);
+        a.close();
+
+        assertEquals("job#2:completed@room", b.peek().key);
+        assertTrue(b.isDelivered("job#1:completed@room"));
+        b.ack(b.peek());
+        assertNull(b.peek());
+        assertEquals(0, b.getPendingBytes());
+        b.close();
+    }
+
+    @Test
+    public void expiredLeaseIsTakenOver() throws Exception {
+        File dir = folder.getRoot();
+        SharedOutboxQueue a = new SharedOutboxQueue(dir, "a", 100);
+        SharedOutboxQueue b = new SharedOutboxQueue(dir, "b", 100);
+        a.append(entry("job#1:completed@room", 1));
+
+        assertEquals("job#1:completed@room", a.peek().key);
+        assertNull(b.peek());
+        // a stops renewing, e.g. because its master died
+        Thread.sleep(150);
+        assertEquals("job#1:completed@room", b.peek().key);
+        assertNull(a.peek());
+        a.close();
+        b.close();
+    }
+
+    @Test
+    public void entryDeliveredAfterTheLeaseWasLostIsLeftToTheNewOwner() throws Exception {
+        File dir = folder.getRoot();
+        SharedOutboxQueue a = new SharedOutboxQueue(dir, "a", 100);
+        SharedOutboxQueue b = new SharedOutboxQueue(dir, "b", 100);
+        a.append(entry("job#1:completed@room", 1));
+
+        OutboxEntry delivering = a.peek();
+        assertNull(b.peek());
+        // a delivery outlasts the lease
+        Thread.sleep(150);
+        assertEquals("job#1:completed@room", b.peek().key);
+        a.ack(delivering);
+
+        assertFalse(b.isDelivered("job#1:completed@room"));
+        assertEquals("job#1:completed@room", b.peek().key);
+        assertNull(a.peek());
+        a.close();
+        b.close();
+    }
+
+    @Test
+    public void skippedRoomsAreLookedPast() throws Exception {
+        SharedOutboxQueue a = new SharedOutboxQueue(folder.getRoot(), "a", 60000);
+        a.append(entry("job#1:completed@busy", "busy", 1));
+        a.append(entry("job#2:completed@quiet", "quiet", 2));
+        a.append(entry("job#3:completed@busy", "busy", 3));
+        Set<String> busy = Collections.singleton("busy");
+
+        assertEquals("job#2:completed@quiet", a.peek(busy).key);
+        a.ack(a.peek(busy));
+        assertNull(a.peek(busy));
+        a.append(entry("job#4:completed@quiet", "quiet", 4));
+        assertEquals("job#4:completed@quiet", a.peek(busy).key);
+        a.ack(a.peek(busy));
+
+        assertEquals("job#1:completed@busy", a.peek().key);
+        a.ack(a.peek());
+        assertEquals("job#3:completed@busy", a.peek().key);
+        a.close();
+    }
+
+    private static OutboxEntry entry(String key, long createdAt) {
+        return entry(key, "room", createdAt);
+    }
+
+    private static OutboxEntry entry(String key, String room, long createdAt) {
+        return new OutboxEntry(key, "token", room, "Build Server", "message " + key, "green", createdAt);
+    }
+}
@@ -4,6 +4,10 @@ import jenkins.plugins.hipchat.StandardHipChatService;
 import org.junit.Before;
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
 public class StandardHipChatServiceTest {
 
     /**
@@ -15,4 +19,78 @@ public class StandardHipChatServiceTest {
         service.setHost("hostvaluethatwillcausepublishtofail");
         service.publish("message");
     }
+
+    @Test
+    public void requestStillRunningAtDeadlineIsAborted() throws Exception {
+        HipChatStubServer server = new HipChatStubServer().setLatency(10000);
+        configureDeadline(500);
+        try {
+            StandardHipChatService service = new StandardHipChatService("token", "deadline-room", "from");
+            service.setProtocol("http");
+            service.setHost(server.getHost());
+            long start = System.currentTimeMillis();
+            RoomDeliveryResult result = service.deliverToRoom("deadline-room", "message", "green");
+            assertFalse(result.isSuccess());
+            assertEquals("deadline exceeded", result.getError());
+            assertTrue(System.currentTimeMillis() - start < 5000);
+        } finally {
+            configureDeadline(HipChatHttpClient.DEFAULT_REQUEST_DEADLINE_MILLIS);
+            server.stop();
+        }
+    }
+
+    @Test
+    public void roomOverItsRateLimitsFailsAtOnceForTheCallerToRetry() throws Exception {
+        HipChatStubServer server = new HipChatStubServer();
+        try {
+            StandardHipChatService service = new StandardHipChatService("paused-token", "paused-room", "from");
+            service.setProtocol("http");
+            service.setHost(server.getHost());
+            HipChatRateLimiter.get().pause("paused-token", "paused-room", 5000);
+            long start = System.currentTimeMillis();
+            RoomDeliveryResult result = service.deliverToRoom("paused-room", "message", "green");
+            assertFalse(result.isSuccess());
+            assertEquals(DeliveryFailure.RATE_LIMITED, result.getFailure());
+            assertTrue(System.currentTimeMillis() - start < 2000);
+            assertEquals(0, server.getRequestCount());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void messagesOverTheQuotaAreDeferredAndAllDelivered() throws Exception {
+        HipChatStubServer server = new HipChatStubServer();
+        try {
+            StandardHipChatService service = new StandardHipChatService("burst-token", "burst-room", "from");
+            service.setProtocol("http");
+            service.setHost(server.getHost());
+            int messages = HipChatRateLimiter.DEFAULT_ROOM_REQUESTS + 3;
+            int deferred = 0;
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < messages; i++) {
+                for (RoomDeliveryResult result : service.deliver("message " + i, "green")) {
+                    if (result.isDeferred()) {
+                        deferred++;
+                    }
+                }
+            }
+            assertTrue(deferred > 0);
+            assertTrue(System.currentTimeMillis() - start < 2000);
+            long deadline = System.currentTimeMillis() + 15000;
+            while (server.getMessageCount() < messages && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assertEquals(messages, server.getMessageCount());
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static void configureDeadline(int millis) {
+        HipChatHttpClient.configure(HipChatHttpClient.DEFAULT_MAX_CONNECTIONS_PER_HOST, HipChatHttpClient.DEFAULT_MAX_TOTAL_CONNECTIONS,
+                HipChatHttpClient.DEFAULT_IDLE_TIMEOUT_SECONDS, HipChatHttpClient.DEFAULT_DNS_TIMEOUT_MILLIS,
+                HipChatHttpClient.DEFAULT_CONNECT_TIMEOUT_MILLIS, HipChatHttpClient.DEFAULT_TLS_TIMEOUT_MILLIS,
+                HipChatHttpClient.DEFAULT_READ_TIMEOUT_MILLIS, millis);
+    }
 }
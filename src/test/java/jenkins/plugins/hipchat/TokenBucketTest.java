@@ -0,0 +1,91 @@
+package jenkins.plugins.hipchat;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TokenBucketTest {
+
+    @Test
+    public void burstWithinCapacityDoesNotWait() {
+        TokenBucket bucket = new TokenBucket(3, 3, TimeUnit.SECONDS, 0);
+        assertEquals(0, bucket.reserve(0));
+        assertEquals(0, bucket.reserve(0));
+        assertEquals(0, bucket.reserve(0));
+    }
+
+    /**
+     * Requests beyond the capacity should be spaced out at the refill rate rather than refused.
+     */
+    @Test
+    public void burstBeyondCapacityIsSmoothed() {
+        TokenBucket bucket = new TokenBucket(2, 2, TimeUnit.SECONDS, 0);
+        bucket.reserve(0);
+        bucket.reserve(0);
+        assertEquals(TimeUnit.SECONDS.toNanos(1), bucket.reserve(0));
+        assertEquals(TimeUnit.SECONDS.toNanos(2), bucket.reserve(0));
+        assertEquals(TimeUnit.SECONDS.toNanos(1), bucket.reserve(TimeUnit.SECONDS.toNanos(2)));
+    }
+
+    @Test
+    public void pauseHoldsBackFurtherPermits() {
+        TokenBucket bucket = new TokenBucket(10, 10, TimeUnit.SECONDS, 0);
+        bucket.pause(0, TimeUnit.SECONDS.toNanos(5));
+        assertTrue(bucket.reserve(0) > TimeUnit.SECONDS.toNanos(5));
+    }
+
+    @Test
+    public void tryReserveRefusesLongWaitsWithoutTakingAPermit() {
+        TokenBucket bucket = new TokenBucket(1, 10, TimeUnit.SECONDS, 0);
+        assertEquals(0, bucket.tryReserve(0, 0));
+        assertEquals(-1, bucket.tryReserve(0, TimeUnit.SECONDS.toNanos(5)));
+        assertEquals(TimeUnit.SECONDS.toNanos(10), bucket.tryReserve(0, TimeUnit.SECONDS.toNanos(10)));
+        bucket.release();
+        assertEquals(TimeUnit.SECONDS.toNanos(5), bucket.tryReserve(TimeUnit.SECONDS.toNanos(5), Long.MAX_VALUE));
+    }
+
+    @Test
+    public void limiterReservesAheadOrRefusesWithoutTakingQuota() throws Exception {
+        HipChatRateLimiter limiter = HipChatRateLimiter.get();
+        limiter.configure(1, 30, 3);
+        try {
+            assertEquals(0, limiter.tryAcquire("limited-token", "room"));
+            long wait = limiter.tryAcquire("limited-token", "room");
+            assertTrue(wait > 290000 && wait <= 300000);
+            assertTrue(limiter.reserve("limited-token", "room") >= wait);
+            assertTrue(limiter.reserve("limited-token", "room") > 590000);
+            assertTrue(limiter.tryAcquire("limited-token", "room") > 890000);
+        } finally {
+            limiter.configure(HipChatRateLimiter.DEFAULT_TOKEN_REQUESTS, HipChatRateLimiter.DEFAULT_ROOM_REQUESTS,
+                    HipChatRateLimiter.DEFAULT_MAX_RETRIES);
+        }
+    }
+
+    @Test
+    public void savingUnchangedLimitsKeepsTheQuota() throws Exception {
+        HipChatRateLimiter limiter = HipChatRateLimiter.get();
+        limiter.configure(1, 30, 3);
+        try {
+            assertEquals(0, limiter.tryAcquire("saved-token", "room"));
+            limiter.configure(1, 30, 5);
+            assertTrue(limiter.tryAcquire("saved-token", "room") > 0);
+            limiter.configure(2, 30, 5);
+            assertEquals(0, limiter.tryAcquire("saved-token", "room"));
+        } finally {
+            limiter.configure(HipChatRateLimiter.DEFAULT_TOKEN_REQUESTS, HipChatRateLimiter.DEFAULT_ROOM_REQUESTS,
+                    HipChatRateLimiter.DEFAULT_MAX_RETRIES);
+        }
+    }
+
+    @Test
+    public void retryAfterAcceptsSecondsOrDate() {
+        assertEquals(120000, HipChatRateLimiter.parseRetryAfter("120", 0));
+        assertEquals(-1, HipChatRateLimiter.parseRetryAfter("soon", 0));
+        assertEquals(-1, HipChatRateLimiter.parseRetryAfter(null, 0));
+        long now = 784111777000L - 30000;
+        assertEquals(30000, HipChatRateLimiter.parseRetryAfter("Sun, 06 Nov 1994 08:49:37 GMT", now));
+    }
+}